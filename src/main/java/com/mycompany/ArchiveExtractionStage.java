@@ -0,0 +1,527 @@
+package com.mycompany;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * An {@link UploadStage} unpacking ZIP, TAR and gzipped TAR parts while they arrive. Every entry
+ * is stored with {@link WriteBehindUploadsFileManager#storeAsync(String, String, InputStream, String)}
+ * under the ID of the upload, keeping the folders of the archive, for the session and tenant of
+ * the request the archive came with; the archive itself is neither spooled nor handed to the
+ * application. The result of the stage is the list of stored names.
+ * <p>
+ * Archives with too many entries, too many uncompressed bytes or a suspicious compression ratio
+ * are vetoed, as are entries trying to escape their folder. Hidden entries (e.g. {@code __MACOSX/._x})
+ * and folders are skipped, but count against the limits like stored entries: the uncompressed
+ * stream is metered as a whole, whether its bytes are stored or skipped. Entries stored before a
+ * veto are kept.
+ */
+public class ArchiveExtractionStage implements UploadStage
+{
+	/** the name of the stage */
+	public static final String NAME = "archive";
+
+	/** the compression ratio is only checked from this many uncompressed bytes on */
+	private static final long RATIO_CHECK_THRESHOLD = 1024 * 1024;
+
+	private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+	private final WriteBehindUploadsFileManager fileManager;
+
+	private final int maxEntries;
+
+	private final long maxTotalBytes;
+
+	private final int maxRatio;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor. Allows 10000 entries, 1GiB uncompressed and a compression ratio of 100.
+	 *
+	 * @param fileManager
+	 *            stores the entries
+	 */
+	public ArchiveExtractionStage(WriteBehindUploadsFileManager fileManager)
+	{
+		this(fileManager, 10_000, 1024L * 1024 * 1024, 100);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param fileManager
+	 *            stores the entries
+	 * @param maxEntries
+	 *            the most entries an archive may have, folders and skipped entries included
+	 * @param maxTotalBytes
+	 *            the most bytes all entries of an archive may have together
+	 * @param maxRatio
+	 *            the highest ratio of uncompressed to compressed bytes
+	 */
+	public ArchiveExtractionStage(WriteBehindUploadsFileManager fileManager, int maxEntries,
+		long maxTotalBytes, int maxRatio)
+	{
+		this.fileManager = Args.notNull(fileManager, "fileManager");
+		this.maxEntries = Args.withinRange(1, Integer.MAX_VALUE, maxEntries, "maxEntries");
+		this.maxTotalBytes = Args.withinRange(1L, Long.MAX_VALUE, maxTotalBytes, "maxTotalBytes");
+		this.maxRatio = Args.withinRange(1, Integer.MAX_VALUE, maxRatio, "maxRatio");
+
+		// the stage pushes bytes, the archive readers pull them: each extraction needs its thread
+		int pool = POOL_COUNTER.incrementAndGet();
+		AtomicInteger threadCounter = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable,
+				"upload-archive-" + pool + "-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public Sink open(String uploadId, String fieldName, String fileName, String contentType)
+	{
+		Format format = Format.of(fileName, contentType);
+		if (format == null)
+		{
+			return null;
+		}
+		// the entries are stored by a thread without the request, which is only known here
+		fileManager.rememberInSession(uploadId);
+		return new ExtractionSink(uploadId, fileName, format, fileManager.getTenant(uploadId),
+			UploadMetrics.get());
+	}
+
+	/**
+	 * Turns the path of an archive entry into a storage name.
+	 *
+	 * @param entryName
+	 *            the path in the archive
+	 * @return the name, or {@code null} if the entry is hidden
+	 * @throws UploadVetoException
+	 *             if the entry tries to escape its folder
+	 */
+	static String storageName(String entryName)
+	{
+		StringBuilder name = new StringBuilder();
+		for (String segment : entryName.replace('\\', '/').split("/"))
+		{
+			if (segment.isEmpty() || segment.equals("."))
+			{
+				continue;
+			}
+			if (segment.equals(".."))
+			{
+				throw new UploadVetoException("Archive entry outside of its folder: " + entryName);
+			}
+			if (segment.startsWith("."))
+			{
+				return null;
+			}
+			if (name.length() > 0)
+			{
+				name.append('/');
+			}
+			name.append(segment);
+		}
+		return name.length() > 0 ? name.toString() : null;
+	}
+
+	private enum Format
+	{
+		ZIP, TAR, TAR_GZ;
+
+		private static Format of(String fileName, String contentType)
+		{
+			String name = fileName != null ? fileName.toLowerCase(Locale.ROOT) : "";
+			String type = contentType != null ? contentType.toLowerCase(Locale.ROOT) : "";
+			if (name.endsWith(".zip") || type.equals("application/zip") ||
+				type.equals("application/x-zip-compressed"))
+			{
+				return ZIP;
+			}
+			if (name.endsWith(".tar.gz") || name.endsWith(".tgz"))
+			{
+				return TAR_GZ;
+			}
+			if (name.endsWith(".tar") || type.equals("application/x-tar"))
+			{
+				return TAR;
+			}
+			return null;
+		}
+	}
+
+	private final class ExtractionSink implements Sink
+	{
+		private final String uploadId;
+
+		private final String archiveName;
+
+		private final Format format;
+
+		private final String tenant;
+
+		private final UploadMetrics metrics;
+
+		private final ChunkInputStream compressed = new ChunkInputStream();
+
+		private final Future<List<String>> extraction;
+
+		private final List<String> stored = new ArrayList<>();
+
+		private int entries;
+
+		private long uncompressedBytes;
+
+		private ExtractionSink(String uploadId, String archiveName, Format format, String tenant,
+			UploadMetrics metrics)
+		{
+			this.uploadId = uploadId;
+			this.archiveName = archiveName;
+			this.format = format;
+			this.tenant = tenant;
+			this.metrics = metrics;
+			extraction = executor.submit(() -> {
+				try
+				{
+					extract();
+					return Collections.unmodifiableList(stored);
+				}
+				finally
+				{
+					// the rest of the part, e.g. a ZIP central directory, is not needed
+					compressed.close();
+				}
+			});
+		}
+
+		@Override
+		public boolean consumesPart()
+		{
+			return true;
+		}
+
+		@Override
+		public void accept(ByteBuffer bytes) throws Exception
+		{
+			if (extraction.isDone())
+			{
+				// report a veto as soon as possible, so that the parser stops feeding the stages
+				result();
+			}
+			compressed.push(bytes);
+		}
+
+		@Override
+		public Object finish() throws Exception
+		{
+			compressed.push(ChunkInputStream.END);
+			List<String> names = result();
+			metrics.entriesExtracted(names.size());
+			return names;
+		}
+
+		@Override
+		public void abort()
+		{
+			compressed.abort();
+		}
+
+		private List<String> result() throws Exception
+		{
+			try
+			{
+				return extraction.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof UploadVetoException)
+				{
+					throw (UploadVetoException)e.getCause();
+				}
+				// the archive is not handed to the application, so it must not silently vanish
+				throw new UploadVetoException("Could not extract " + archiveName, e.getCause());
+			}
+		}
+
+		private void extract() throws IOException
+		{
+			switch (format)
+			{
+				case ZIP :
+					// closeEntry() and skip() inflate through read(), so skipped bytes are metered too
+					ZipInputStream zip = new ZipInputStream(compressed)
+					{
+						@Override
+						public int read(byte[] b, int off, int len) throws IOException
+						{
+							int n = super.read(b, off, len);
+							if (n > 0)
+							{
+								count(n);
+							}
+							return n;
+						}
+					};
+					for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+					{
+						countEntry();
+						if (!entry.isDirectory())
+						{
+							store(entry.getName(), zip);
+						}
+					}
+					break;
+				case TAR :
+				case TAR_GZ :
+					InputStream in = new MeteredInputStream(format == Format.TAR_GZ
+						? new GZIPInputStream(compressed, 64 * 1024) : compressed);
+					TarReader tar = new TarReader(in);
+					for (String name = tar.nextEntry(); name != null; name = tar.nextEntry())
+					{
+						countEntry();
+						if (tar.isFile())
+						{
+							store(name, tar.entryStream());
+						}
+					}
+					break;
+			}
+		}
+
+		private void store(String entryName, InputStream in) throws IOException
+		{
+			String name = storageName(entryName);
+			if (name == null)
+			{
+				return;
+			}
+			fileManager.storeAsync(uploadId, name, new UnclosableInputStream(in), tenant);
+			stored.add(name);
+		}
+
+		private void countEntry()
+		{
+			if (++entries > maxEntries)
+			{
+				throw new UploadVetoException(archiveName + " has more than " + maxEntries + " entries");
+			}
+		}
+
+		/**
+		 * Counts uncompressed bytes and vetoes the archive as soon as a limit is crossed.
+		 */
+		private void count(int n)
+		{
+			uncompressedBytes += n;
+			if (uncompressedBytes > maxTotalBytes)
+			{
+				throw new UploadVetoException(archiveName + " has more than " + maxTotalBytes +
+					" uncompressed bytes");
+			}
+			if (uncompressedBytes > RATIO_CHECK_THRESHOLD &&
+				uncompressedBytes / Math.max(compressed.getConsumed(), 1) > maxRatio)
+			{
+				throw new UploadVetoException(archiveName + " has a compression ratio above " +
+					maxRatio);
+			}
+		}
+
+		/**
+		 * Meters every uncompressed byte, including the skipped ones.
+		 */
+		private final class MeteredInputStream extends FilterInputStream
+		{
+			private final byte[] skipBuffer = new byte[8192];
+
+			private MeteredInputStream(InputStream in)
+			{
+				super(in);
+			}
+
+			@Override
+			public int read() throws IOException
+			{
+				int b = super.read();
+				if (b >= 0)
+				{
+					count(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int n = super.read(b, off, len);
+				if (n > 0)
+				{
+					count(n);
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException
+			{
+				// the skip of GZIPInputStream inflates out of sight, read instead
+				long skipped = 0;
+				while (skipped < n)
+				{
+					int read = read(skipBuffer, 0, (int)Math.min(skipBuffer.length, n - skipped));
+					if (read < 0)
+					{
+						break;
+					}
+					skipped += read;
+				}
+				return skipped;
+			}
+		}
+	}
+
+	/**
+	 * An entry stream that leaves the archive open for the next entry.
+	 */
+	private static final class UnclosableInputStream extends FilterInputStream
+	{
+		private UnclosableInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public void close()
+		{
+			// the archive stays open for the next entry
+		}
+	}
+
+	/**
+	 * The chunks pushed by the pipeline, pulled by an archive reader.
+	 */
+	private static final class ChunkInputStream extends InputStream
+	{
+		/** marks the end of the part, compared by identity */
+		private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+		/** marks an aborted part, compared by identity */
+		private static final ByteBuffer ABORT = ByteBuffer.allocate(0);
+
+		private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(4);
+
+		private ByteBuffer current = ByteBuffer.allocate(0);
+
+		private volatile long consumed;
+
+		private volatile boolean closed;
+
+		/**
+		 * Called by the pipeline. Discards the chunks once the reader is done.
+		 */
+		private void push(ByteBuffer chunk) throws InterruptedException
+		{
+			if (!closed)
+			{
+				queue.put(chunk);
+			}
+		}
+
+		private void abort()
+		{
+			queue.clear();
+			queue.offer(ABORT);
+		}
+
+		private long getConsumed()
+		{
+			return consumed;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (!fill())
+			{
+				return -1;
+			}
+			consumed++;
+			return current.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (!fill())
+			{
+				return -1;
+			}
+			int n = Math.min(len, current.remaining());
+			current.get(b, off, n);
+			consumed += n;
+			return n;
+		}
+
+		@Override
+		public void close()
+		{
+			closed = true;
+			// unblocks a pipeline waiting for room, it sees the flag on its next push
+			queue.clear();
+		}
+
+		private boolean fill() throws IOException
+		{
+			while (!current.hasRemaining())
+			{
+				if (current == END)
+				{
+					return false;
+				}
+				try
+				{
+					current = queue.take();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the upload");
+				}
+				if (current == ABORT)
+				{
+					throw new InterruptedIOException("The upload was aborted");
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.mycompany;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * A bounded blocking queue sharing its consumers among tenants (e.g. sessions) in proportion to
+ * their weights, by cost (e.g. bytes) rather than by number of elements. This is self-clocked fair
+ * queuing: an element is tagged with the tag of its tenant's previous element, or the tag of the
+ * last element taken if that is later, plus its cost divided by the weight of the tenant, and
+ * elements are taken by increasing tag. A tenant queueing a lot therefore only delays its own
+ * elements, and a tenant that was idle is served next without being credited for its idle time.
+ * <p>
+ * Once {@link #close() closed} the queue takes no more elements, the queued ones can still be
+ * taken.
+ *
+ * @param <E>
+ *            the type of the elements
+ */
+class FairQueue<E>
+{
+	private final int capacity;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final PriorityQueue<Tagged<E>> elements = new PriorityQueue<>();
+
+	/** the tenants with queued elements */
+	private final Map<String, Tenant> tenants = new HashMap<>();
+
+	/** the tag of the last element taken */
+	private long virtualTime;
+
+	private long sequence;
+
+	private boolean closed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            how many elements may be queued before {@link #put(String, int, long, Object)} blocks
+	 */
+	FairQueue(int capacity)
+	{
+		this.capacity = Args.withinRange(1, Integer.MAX_VALUE, capacity, "capacity");
+	}
+
+	/**
+	 * Queues an element, waiting for room if the queue is full.
+	 *
+	 * @param tenant
+	 *            the tenant the element belongs to
+	 * @param weight
+	 *            the weight of the tenant, its share relative to the tenants with weight 1
+	 * @param cost
+	 *            the cost of the element, e.g. its bytes
+	 * @param element
+	 *            the element
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for room
+	 * @throws IllegalStateException
+	 *             if the queue is closed, or gets closed while waiting for room
+	 */
+	void put(String tenant, int weight, long cost, E element) throws InterruptedException
+	{
+		Args.notNull(tenant, "tenant");
+		Args.withinRange(1, Integer.MAX_VALUE, weight, "weight");
+		Args.notNull(element, "element");
+		lock.lockInterruptibly();
+		try
+		{
+			while (elements.size() == capacity && !closed)
+			{
+				notFull.await();
+			}
+			if (closed)
+			{
+				throw new IllegalStateException("The queue has been closed");
+			}
+			Tenant state = tenants.computeIfAbsent(tenant, Tenant::new);
+			// at least 1, so that empty files are not free
+			state.lastTag = Math.max(virtualTime, state.lastTag) + Math.max(1, cost / weight);
+			state.queued++;
+			elements.add(new Tagged<>(state, state.lastTag, sequence++, element));
+			notEmpty.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes elements in fair order, waiting a while for the first one.
+	 *
+	 * @param batch
+	 *            the list to add the elements to
+	 * @param max
+	 *            the most elements to take
+	 * @param timeout
+	 *            how long to wait for the first element
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the number of elements taken, 0 if the timeout elapsed first or the queue is
+	 *         {@link #isDrained() drained}
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	int drainTo(List<? super E> batch, int max, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try
+		{
+			while (elements.isEmpty())
+			{
+				if (nanos <= 0 || closed)
+				{
+					return 0;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			int taken = 0;
+			while (taken < max && !elements.isEmpty())
+			{
+				Tagged<E> next = elements.poll();
+				virtualTime = next.tag;
+				if (--next.tenant.queued == 0)
+				{
+					// its last tag is the virtual time now, forgetting it forgives nothing
+					tenants.remove(next.tenant.name);
+				}
+				batch.add(next.element);
+				taken++;
+			}
+			notFull.signalAll();
+			return taken;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops taking elements, wakes up the producers waiting for room and the consumers waiting for
+	 * an element.
+	 */
+	void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			notFull.signalAll();
+			notEmpty.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return whether the queue is closed and empty, once {@code true} it stays so
+	 */
+	boolean isDrained()
+	{
+		lock.lock();
+		try
+		{
+			return closed && elements.isEmpty();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of queued elements
+	 */
+	int size()
+	{
+		lock.lock();
+		try
+		{
+			return elements.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private static final class Tenant
+	{
+		private final String name;
+
+		private long lastTag;
+
+		private int queued;
+
+		private Tenant(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	private static final class Tagged<E> implements Comparable<Tagged<E>>
+	{
+		private final Tenant tenant;
+
+		private final long tag;
+
+		private final long sequence;
+
+		private final E element;
+
+		private Tagged(Tenant tenant, long tag, long sequence, E element)
+		{
+			this.tenant = tenant;
+			this.tag = tag;
+			this.sequence = sequence;
+			this.element = element;
+		}
+
+		@Override
+		public int compareTo(Tagged<E> other)
+		{
+			int byTag = Long.compare(tag, other.tag);
+			return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.mycompany;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletRequestContext;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * A {@link ServletRequestContext} that reports every byte the multipart parser reads from the
+ * request body to {@link UploadMetrics}, and the time spent blocked in those reads to the
+ * {@link UploadTracer} when it asks for it.
+ */
+class MeteredRequestContext extends ServletRequestContext
+{
+	private final UploadMetrics metrics;
+
+	private final UploadTracer tracer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param request
+	 *            the request being parsed
+	 * @param metrics
+	 *            the metrics to feed
+	 * @param tracer
+	 *            the tracer of the request
+	 */
+	MeteredRequestContext(HttpServletRequest request, UploadMetrics metrics, UploadTracer tracer)
+	{
+		super(request);
+		this.metrics = metrics;
+		this.tracer = tracer;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		return new FilterInputStream(super.getInputStream())
+		{
+			@Override
+			public int read() throws IOException
+			{
+				long start = tracer.isTimingReads() ? System.nanoTime() : 0;
+				int read = super.read();
+				if (tracer.isTimingReads())
+				{
+					tracer.read(System.nanoTime() - start, read < 0 ? 0 : 1);
+				}
+				if (read >= 0)
+				{
+					metrics.bytesIngested(1);
+				}
+				return read;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				long start = tracer.isTimingReads() ? System.nanoTime() : 0;
+				int read = super.read(b, off, len);
+				if (tracer.isTimingReads())
+				{
+					tracer.read(System.nanoTime() - start, read);
+				}
+				if (read > 0)
+				{
+					metrics.bytesIngested(read);
+				}
+				return read;
+			}
+		};
+	}
+}
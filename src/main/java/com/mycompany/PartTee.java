@@ -0,0 +1,442 @@
+package com.mycompany;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fans the bytes of one file part out to the sinks of the {@link UploadPipeline} while the part
+ * is spooled. Written to by the request thread only; every sink is fed by its own lane on the
+ * pipeline's executor.
+ */
+class PartTee
+{
+	private static final Logger LOG = LoggerFactory.getLogger(PartTee.class);
+
+	/** marks the end of the part, compared by identity */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	/** marks an upload that failed or was vetoed, compared by identity */
+	private static final ByteBuffer ABORT = ByteBuffer.allocate(0);
+
+	private final List<Lane> lanes;
+
+	private final int chunkSize;
+
+	private final boolean consuming;
+
+	private final boolean vetoOnTimeout;
+
+	private ByteBuffer chunk;
+
+	private boolean closed;
+
+	private volatile UploadVetoException veto;
+
+	/**
+	 * Constructor. Starts the lanes.
+	 *
+	 * @param names
+	 *            the names of the stages
+	 * @param sinks
+	 *            the sinks of the stages, in the same order
+	 * @param chunkSize
+	 *            the size of the chunks handed to the sinks
+	 * @param timeouts
+	 *            how long {@link #await()} waits for each stage, in the same order
+	 * @param maxLagChunks
+	 *            how many chunks a sink may lag behind
+	 * @param vetoOnTimeout
+	 *            whether a stage that times out vetoes the part
+	 * @param executor
+	 *            runs the lanes
+	 */
+	PartTee(List<String> names, List<UploadStage.Sink> sinks, List<Duration> timeouts, int chunkSize,
+		int maxLagChunks, boolean vetoOnTimeout, Executor executor)
+	{
+		this.chunkSize = chunkSize;
+		this.vetoOnTimeout = vetoOnTimeout;
+		boolean consuming = false;
+		lanes = new ArrayList<>(sinks.size());
+		for (int i = 0; i < sinks.size(); i++)
+		{
+			lanes.add(new Lane(names.get(i), sinks.get(i), timeouts.get(i), maxLagChunks));
+			consuming |= sinks.get(i).consumesPart();
+		}
+		this.consuming = consuming;
+		for (Lane lane : lanes)
+		{
+			executor.execute(lane);
+		}
+	}
+
+	/**
+	 * @param out
+	 *            the stream the part is spooled to
+	 * @return a stream writing to {@code out} and to the sinks, ending the part when closed
+	 */
+	OutputStream wrap(OutputStream out)
+	{
+		return new FilterOutputStream(out)
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				out.write(b);
+				tee(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				out.write(b, off, len);
+				tee(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				try
+				{
+					super.close();
+				}
+				finally
+				{
+					end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits for the sinks to process the whole part, each at most for its timeout from now. A
+	 * stage that does not finish in time is aborted and has a {@link TimeoutException} as result,
+	 * or vetoes the part if the tee was told to.
+	 *
+	 * @return the results of the stages by name; failed stages have their exception as result
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	Map<String, Object> await() throws InterruptedIOException
+	{
+		long start = System.nanoTime();
+		Map<String, Object> results = new LinkedHashMap<>();
+		for (Lane lane : lanes)
+		{
+			if (lane.timedOut != null)
+			{
+				// given up on while the part was spooled
+				results.put(lane.name, lane.timedOut);
+				continue;
+			}
+			try
+			{
+				long remaining = lane.timeout.toNanos() - (System.nanoTime() - start);
+				results.put(lane.name, lane.result.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS));
+			}
+			catch (TimeoutException e)
+			{
+				results.put(lane.name, lane.timedOut());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for stage " + lane.name);
+			}
+			catch (ExecutionException e)
+			{
+				results.put(lane.name, e.getCause());
+			}
+		}
+		return Collections.unmodifiableMap(results);
+	}
+
+	/**
+	 * @return true if a sink takes over the part, which must then not be handed to the application
+	 */
+	boolean isConsuming()
+	{
+		return consuming;
+	}
+
+	/**
+	 * @return the veto of the first stage that rejected the part, or {@code null}
+	 */
+	UploadVetoException getVeto()
+	{
+		return veto;
+	}
+
+	/**
+	 * Aborts the sinks, unless the part has been completely spooled already.
+	 */
+	void abort()
+	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
+		chunk = null;
+		for (Lane lane : lanes)
+		{
+			try
+			{
+				offer(lane, ABORT);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void tee(int b) throws IOException
+	{
+		if (closed || veto != null)
+		{
+			return;
+		}
+		if (chunk == null)
+		{
+			chunk = ByteBuffer.allocate(chunkSize);
+		}
+		chunk.put((byte)b);
+		if (!chunk.hasRemaining())
+		{
+			publish();
+		}
+	}
+
+	private void tee(byte[] b, int off, int len) throws IOException
+	{
+		if (closed || veto != null)
+		{
+			return;
+		}
+		while (len > 0)
+		{
+			if (chunk == null)
+			{
+				chunk = ByteBuffer.allocate(chunkSize);
+			}
+			int n = Math.min(chunk.remaining(), len);
+			chunk.put(b, off, n);
+			off += n;
+			len -= n;
+			if (!chunk.hasRemaining())
+			{
+				publish();
+			}
+		}
+	}
+
+	private void end() throws IOException
+	{
+		if (closed)
+		{
+			return;
+		}
+		if (chunk != null && chunk.position() > 0 && veto == null)
+		{
+			publish();
+		}
+		closed = true;
+		for (Lane lane : lanes)
+		{
+			put(lane, veto != null ? ABORT : END);
+		}
+	}
+
+	private void publish() throws IOException
+	{
+		chunk.flip();
+		for (Lane lane : lanes)
+		{
+			// a view, the bytes are shared by all lanes
+			put(lane, chunk.asReadOnlyBuffer());
+		}
+		chunk = null;
+	}
+
+	private void put(Lane lane, ByteBuffer buffer) throws IOException
+	{
+		try
+		{
+			offer(lane, buffer);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while feeding stage " + lane.name);
+		}
+	}
+
+	private void offer(Lane lane, ByteBuffer buffer) throws InterruptedException
+	{
+		// waits while the lane lags too far behind, but not longer than the stage may take
+		if (lane.timedOut == null && !lane.queue.offer(buffer, lane.timeout.toNanos(), TimeUnit.NANOSECONDS))
+		{
+			lane.timedOut();
+		}
+	}
+
+	private synchronized void veto(UploadVetoException e)
+	{
+		if (veto == null)
+		{
+			veto = e;
+		}
+	}
+
+	/**
+	 * Feeds one sink. Always drains its queue up to the end marker, even after the sink failed,
+	 * so that the request thread never blocks on a lane that stopped consuming.
+	 */
+	private final class Lane implements Runnable
+	{
+		private final String name;
+
+		private final UploadStage.Sink sink;
+
+		private final Duration timeout;
+
+		private final BlockingQueue<ByteBuffer> queue;
+
+		private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+		/** the result once the sink was given up on, it is not fed or finished any more */
+		private volatile Exception timedOut;
+
+		private Lane(String name, UploadStage.Sink sink, Duration timeout, int maxLagChunks)
+		{
+			this.name = name;
+			this.sink = sink;
+			this.timeout = timeout;
+			this.queue = new ArrayBlockingQueue<>(maxLagChunks);
+		}
+
+		/**
+		 * Gives up on a sink that did not keep up or finish in time: aborts it from the request
+		 * thread, as it may hang in the lane for good, and lets the lane end once it gets going
+		 * again.
+		 *
+		 * @return the result of the stage
+		 */
+		private Exception timedOut()
+		{
+			String message = "Upload stage " + name + " did not finish within " + timeout;
+			Exception result;
+			if (vetoOnTimeout)
+			{
+				UploadVetoException e = new UploadVetoException(message);
+				veto(e);
+				result = e;
+			}
+			else
+			{
+				result = new TimeoutException(message);
+			}
+			timedOut = result;
+			LOG.warn(message);
+			sink.abort();
+			// only the request thread puts, so there is room for the marker once cleared
+			queue.clear();
+			queue.offer(ABORT);
+			return result;
+		}
+
+		@Override
+		public void run()
+		{
+			Exception failure = null;
+			while (true)
+			{
+				ByteBuffer buffer;
+				try
+				{
+					buffer = queue.take();
+				}
+				catch (InterruptedException e)
+				{
+					sink.abort();
+					result.completeExceptionally(e);
+					return;
+				}
+
+				if (buffer == END || buffer == ABORT)
+				{
+					if (timedOut != null)
+					{
+						result.complete(null);
+					}
+					else if (failure != null)
+					{
+						result.complete(failure);
+					}
+					else if (buffer == ABORT || veto != null)
+					{
+						sink.abort();
+						result.complete(null);
+					}
+					else
+					{
+						try
+						{
+							result.complete(sink.finish());
+						}
+						catch (Exception e)
+						{
+							result.complete(failed(e));
+						}
+					}
+					return;
+				}
+
+				if (failure == null && veto == null && timedOut == null)
+				{
+					try
+					{
+						sink.accept(buffer);
+					}
+					catch (Exception e)
+					{
+						failure = failed(e);
+						sink.abort();
+					}
+				}
+			}
+		}
+
+		private Exception failed(Exception e)
+		{
+			if (e instanceof UploadVetoException)
+			{
+				veto((UploadVetoException)e);
+			}
+			else
+			{
+				LOG.warn("Upload stage {} failed", name, e);
+			}
+			return e;
+		}
+	}
+}
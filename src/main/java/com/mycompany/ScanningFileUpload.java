@@ -0,0 +1,518 @@
+package com.mycompany;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.FileItemFactory;
+import org.apache.tomcat.util.http.fileupload.FileUpload;
+import org.apache.tomcat.util.http.fileupload.FileUploadException;
+import org.apache.tomcat.util.http.fileupload.ProgressListener;
+import org.apache.tomcat.util.http.fileupload.RequestContext;
+import org.apache.tomcat.util.http.fileupload.UploadContext;
+import org.apache.tomcat.util.http.fileupload.impl.FileCountLimitExceededException;
+import org.apache.tomcat.util.http.fileupload.impl.FileSizeLimitExceededException;
+import org.apache.tomcat.util.http.fileupload.impl.IOFileUploadException;
+import org.apache.tomcat.util.http.fileupload.impl.InvalidContentTypeException;
+import org.apache.tomcat.util.http.fileupload.impl.SizeLimitExceededException;
+import org.apache.tomcat.util.http.fileupload.util.FileItemHeadersImpl;
+
+/**
+ * A {@link FileUpload} with its own multipart parser, for large files. Tomcat's
+ * {@code MultipartStream} compares every byte of the body with the boundary through a 4KiB
+ * buffer; this parser looks for the boundary with a Boyer-Moore-Horspool skip table, which
+ * usually skips a boundary length of bytes per comparison, over a 64KiB buffer that is reused by
+ * the thread for every request. Part headers are parsed in that buffer as well: the only
+ * allocations per part are the strings the {@link FileItem} keeps.
+ * <p>
+ * The items are created by the same {@link FileItemFactory} and the limits, progress listener and
+ * exceptions are those of {@link FileUpload}, so it is a drop-in replacement. Nested
+ * {@code multipart/mixed} parts, deprecated by RFC 7578, are kept as single items.
+ */
+class ScanningFileUpload extends FileUpload
+{
+	/** the size of the buffers */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/** the most bytes of headers a part may have, as in MultipartStream */
+	private static final int HEADER_PART_SIZE_MAX = 10240;
+
+	private static final byte CR = '\r';
+
+	private static final byte LF = '\n';
+
+	private static final byte DASH = '-';
+
+	private static final byte[] CONTENT_DISPOSITION_BYTES = "content-disposition".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] CONTENT_TYPE_BYTES = "content-type".getBytes(StandardCharsets.US_ASCII);
+
+	private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	@Override
+	public List<FileItem> parseRequest(RequestContext ctx) throws FileUploadException
+	{
+		String contentType = ctx.getContentType();
+		if (contentType == null || !contentType.toLowerCase(Locale.ENGLISH).startsWith(MULTIPART))
+		{
+			throw new InvalidContentTypeException(String.format(
+				"the request doesn't contain a %s or %s stream, content type header is %s",
+				MULTIPART_FORM_DATA, MULTIPART_MIXED, contentType));
+		}
+		byte[] boundary = getBoundary(contentType);
+		if (boundary == null)
+		{
+			throw new FileUploadException("the request was rejected because no multipart boundary was found");
+		}
+		long contentLength = ctx instanceof UploadContext ? ((UploadContext)ctx).contentLength() : -1;
+		if (getSizeMax() >= 0 && contentLength > getSizeMax())
+		{
+			throw new SizeLimitExceededException(String.format(
+				"the request was rejected because its size (%s) exceeds the configured maximum (%s)",
+				contentLength, getSizeMax()), contentLength, getSizeMax());
+		}
+		FileItemFactory factory = Objects.requireNonNull(getFileItemFactory(), "No FileItemFactory has been set.");
+		Charset headerCharset = Charset.forName(getHeaderEncoding() != null ? getHeaderEncoding()
+			: ctx.getCharacterEncoding() != null ? ctx.getCharacterEncoding() : "UTF-8");
+
+		List<FileItem> items = new ArrayList<>();
+		boolean successful = false;
+		try (InputStream in = ctx.getInputStream())
+		{
+			Scanner scanner = new Scanner(in, BUFFERS.get(), boundary, contentLength);
+			scanner.skipPreamble();
+			while (scanner.nextPart())
+			{
+				FileItemHeadersImpl headers = newFileItemHeaders();
+				scanner.readHeaders(headers, headerCharset);
+				String fieldName = getFieldName(headers);
+				if (fieldName == null)
+				{
+					// not a form-data part, as MultipartStream does
+					scanner.copyBody(null, -1);
+					continue;
+				}
+				if (getFileCountMax() != -1 && items.size() == getFileCountMax())
+				{
+					throw new FileCountLimitExceededException(ATTACHMENT, getFileCountMax());
+				}
+				String fileName = getFileName(headers);
+				FileItem item = factory.createItem(fieldName, headers.getHeader(CONTENT_TYPE),
+					fileName == null, fileName);
+				items.add(item);
+				scanner.notifyProgress(items.size());
+				try (OutputStream out = item.getOutputStream())
+				{
+					long size = scanner.copyBody(out, getFileSizeMax());
+					if (size < 0)
+					{
+						FileSizeLimitExceededException e = new FileSizeLimitExceededException(String.format(
+							"The field %s exceeds its maximum permitted size of %s bytes.", fieldName,
+							getFileSizeMax()), -size, getFileSizeMax());
+						e.setFieldName(fieldName);
+						e.setFileName(fileName);
+						throw e;
+					}
+				}
+				item.setHeaders(headers);
+			}
+			successful = true;
+			return items;
+		}
+		catch (FileUploadException e)
+		{
+			throw e;
+		}
+		catch (IOException e)
+		{
+			throw new IOFileUploadException(String.format("Processing of %s request failed. %s",
+				MULTIPART_FORM_DATA, e.getMessage()), e);
+		}
+		finally
+		{
+			if (!successful)
+			{
+				for (FileItem item : items)
+				{
+					try
+					{
+						item.delete();
+					}
+					catch (Exception e)
+					{
+						// ignored, the original failure matters
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the delimiters in a multipart body and copies the bytes between them.
+	 */
+	private final class Scanner
+	{
+		private final InputStream in;
+
+		private final byte[] buffer;
+
+		/** CRLF, two dashes and the boundary */
+		private final byte[] delimiter;
+
+		/** how far the search may move on for each byte value at the end of the window */
+		private final int[] skip = new int[256];
+
+		private final long contentLength;
+
+		private final ProgressListener listener;
+
+		private int pos;
+
+		private int limit;
+
+		private boolean eof;
+
+		private long bytesRead;
+
+		private int items;
+
+		private Scanner(InputStream in, byte[] buffer, byte[] boundary, long contentLength)
+		{
+			this.in = in;
+			this.buffer = buffer;
+			this.contentLength = contentLength;
+			this.listener = getProgressListener();
+
+			delimiter = new byte[boundary.length + 4];
+			delimiter[0] = CR;
+			delimiter[1] = LF;
+			delimiter[2] = DASH;
+			delimiter[3] = DASH;
+			System.arraycopy(boundary, 0, delimiter, 4, boundary.length);
+			int last = delimiter.length - 1;
+			Arrays.fill(skip, delimiter.length);
+			for (int i = 0; i < last; i++)
+			{
+				skip[delimiter[i] & 0xFF] = last - i;
+			}
+
+			// the first boundary has no CRLF before it
+			buffer[0] = CR;
+			buffer[1] = LF;
+			limit = 2;
+		}
+
+		/**
+		 * Skips everything up to the first delimiter.
+		 */
+		private void skipPreamble() throws IOException
+		{
+			copyBody(null, -1);
+		}
+
+		/**
+		 * Reads what follows a delimiter.
+		 *
+		 * @return true if a part follows, false for the closing delimiter
+		 */
+		private boolean nextPart() throws IOException
+		{
+			pos += delimiter.length;
+			require(2);
+			if (buffer[pos] == DASH && buffer[pos + 1] == DASH)
+			{
+				// the epilogue is ignored
+				return false;
+			}
+			// transport padding
+			while (true)
+			{
+				require(2);
+				byte b = buffer[pos];
+				if (b == ' ' || b == '\t')
+				{
+					pos++;
+				}
+				else if (b == CR && buffer[pos + 1] == LF)
+				{
+					pos += 2;
+					return true;
+				}
+				else
+				{
+					throw new FileUploadException("Unexpected characters follow a boundary");
+				}
+			}
+		}
+
+		/**
+		 * Parses the header lines of a part, up to and including the empty line.
+		 */
+		private void readHeaders(FileItemHeadersImpl headers, Charset charset) throws IOException
+		{
+			int size = 0;
+			String lastName = null;
+			String lastValue = null;
+			while (true)
+			{
+				int end = findLineEnd(pos);
+				while (end < 0)
+				{
+					if (limit - pos >= HEADER_PART_SIZE_MAX || !fill())
+					{
+						throw new FileUploadException("Header section has more than " + HEADER_PART_SIZE_MAX +
+							" bytes (maybe it is not properly terminated)");
+					}
+					end = findLineEnd(pos);
+				}
+				size += end + 2 - pos;
+				if (size > HEADER_PART_SIZE_MAX)
+				{
+					throw new FileUploadException("Header section has more than " + HEADER_PART_SIZE_MAX +
+						" bytes (maybe it is not properly terminated)");
+				}
+				if (end == pos)
+				{
+					// the empty line
+					pos += 2;
+					if (lastName != null)
+					{
+						headers.addHeader(lastName, lastValue);
+					}
+					return;
+				}
+				if (buffer[pos] == ' ' || buffer[pos] == '\t')
+				{
+					// a folded line continues the previous header
+					if (lastName != null)
+					{
+						lastValue = lastValue + ' ' + new String(buffer, pos, end - pos, charset).trim();
+					}
+				}
+				else
+				{
+					int colon = indexOf((byte)':', pos, end);
+					if (colon > pos)
+					{
+						if (lastName != null)
+						{
+							headers.addHeader(lastName, lastValue);
+						}
+						int nameEnd = trimEnd(pos, colon);
+						int valueStart = trimStart(colon + 1, end);
+						int valueEnd = trimEnd(valueStart, end);
+						// the names we know are not decoded
+						lastName = equalsIgnoreCase(CONTENT_DISPOSITION_BYTES, pos, nameEnd) ? CONTENT_DISPOSITION
+							: equalsIgnoreCase(CONTENT_TYPE_BYTES, pos, nameEnd) ? CONTENT_TYPE
+							: new String(buffer, pos, nameEnd - pos, StandardCharsets.ISO_8859_1);
+						lastValue = new String(buffer, valueStart, valueEnd - valueStart, charset);
+					}
+				}
+				pos = end + 2;
+			}
+		}
+
+		/**
+		 * Copies the bytes up to the next delimiter.
+		 *
+		 * @param out
+		 *            where to copy to, or {@code null} to skip the bytes
+		 * @param max
+		 *            the most bytes to copy, or -1
+		 * @return the bytes copied, or minus the bytes seen if that is more than {@code max}
+		 */
+		private long copyBody(OutputStream out, long max) throws IOException
+		{
+			long copied = 0;
+			while (true)
+			{
+				int found = find();
+				// a delimiter may start in the last bytes, they are kept for the next search
+				int end = found >= 0 ? found : Math.max(pos, limit - (delimiter.length - 1));
+				int length = end - pos;
+				if (length > 0)
+				{
+					copied += length;
+					if (max >= 0 && copied > max)
+					{
+						return -copied;
+					}
+					if (out != null)
+					{
+						out.write(buffer, pos, length);
+					}
+					pos = end;
+				}
+				if (found >= 0)
+				{
+					return copied;
+				}
+				if (!fill())
+				{
+					throw new FileUploadException("Stream ended unexpectedly");
+				}
+			}
+		}
+
+		private void notifyProgress(int items)
+		{
+			this.items = items;
+			if (listener != null)
+			{
+				listener.update(bytesRead, contentLength, items);
+			}
+		}
+
+		/**
+		 * Boyer-Moore-Horspool: compares the window from its end and, on a mismatch, moves on by
+		 * the distance from the last occurrence of the byte under the end of the window to the
+		 * end of the delimiter.
+		 *
+		 * @return the position of the next delimiter in the buffer, or -1
+		 */
+		private int find()
+		{
+			byte[] b = buffer;
+			byte[] d = delimiter;
+			int last = d.length - 1;
+			int i = pos;
+			int stop = limit - last;
+			while (i < stop)
+			{
+				int j = last;
+				while (b[i + j] == d[j])
+				{
+					if (j == 0)
+					{
+						return i;
+					}
+					j--;
+				}
+				i += skip[b[i + last] & 0xFF];
+			}
+			return -1;
+		}
+
+		private int findLineEnd(int from)
+		{
+			for (int i = from; i < limit - 1; i++)
+			{
+				if (buffer[i] == CR && buffer[i + 1] == LF)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private int indexOf(byte value, int from, int to)
+		{
+			for (int i = from; i < to; i++)
+			{
+				if (buffer[i] == value)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private int trimStart(int from, int to)
+		{
+			while (from < to && (buffer[from] == ' ' || buffer[from] == '\t'))
+			{
+				from++;
+			}
+			return from;
+		}
+
+		private int trimEnd(int from, int to)
+		{
+			while (to > from && (buffer[to - 1] == ' ' || buffer[to - 1] == '\t'))
+			{
+				to--;
+			}
+			return to;
+		}
+
+		private boolean equalsIgnoreCase(byte[] lowerCase, int from, int to)
+		{
+			if (to - from != lowerCase.length)
+			{
+				return false;
+			}
+			for (int i = 0; i < lowerCase.length; i++)
+			{
+				byte b = buffer[from + i];
+				if (b >= 'A' && b <= 'Z')
+				{
+					b += 'a' - 'A';
+				}
+				if (b != lowerCase[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Makes sure a number of bytes is available after the position.
+		 */
+		private void require(int count) throws IOException
+		{
+			while (limit - pos < count)
+			{
+				if (!fill())
+				{
+					throw new FileUploadException("Stream ended unexpectedly");
+				}
+			}
+		}
+
+		/**
+		 * Moves the unread bytes to the start of the buffer and reads more after them.
+		 *
+		 * @return false at the end of the stream
+		 */
+		private boolean fill() throws IOException
+		{
+			if (eof)
+			{
+				return false;
+			}
+			if (pos > 0)
+			{
+				System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0)
+			{
+				eof = true;
+				return false;
+			}
+			limit += read;
+			bytesRead += read;
+			if (getSizeMax() >= 0 && bytesRead > getSizeMax())
+			{
+				throw new SizeLimitExceededException(String.format(
+					"the request was rejected because its size (%s) exceeds the configured maximum (%s)",
+					bytesRead, getSizeMax()), bytesRead, getSizeMax());
+			}
+			if (listener != null)
+			{
+				listener.update(bytesRead, contentLength, items);
+			}
+			return true;
+		}
+	}
+}
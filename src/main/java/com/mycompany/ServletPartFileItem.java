@@ -23,6 +23,9 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.fileupload2.core.FileItem;
 import org.apache.commons.fileupload2.core.FileItemFactory.AbstractFileItemBuilder;
 import org.apache.commons.fileupload2.core.FileItemHeaders;
@@ -44,16 +47,103 @@ class ServletPartFileItem implements FileItem
 	private final Part part;
 	private final boolean isFormField;
 
+	/**
+	 * The file this part is spooled to, or {@code null} if it is in memory or owned by the
+	 * container
+	 */
+	private final UploadSpool.SpoolFile spoolFile;
+
+	/**
+	 * The memory this part holds, reserved from the {@link UploadMemoryBudget}, or {@code null}
+	 */
+	private final UploadMemoryBudget.Reservation reservation;
+
+	/**
+	 * Whether this part gave up its spool file and its memory reservation
+	 */
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	/**
+	 * The results of the {@link UploadStage}s the part was streamed through, by stage name
+	 */
+	private Map<String, Object> stageResults = Collections.emptyMap();
+
 	/**
 	 * Constructor
 	 */
 	ServletPartFileItem(Part part)
+	{
+		this(part, null, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param part
+	 *            the adapted part
+	 * @param spoolFile
+	 *            the file the part is spooled to, whose reference the part takes over
+	 * @param reservation
+	 *            the memory the part holds, which the part takes over
+	 */
+	ServletPartFileItem(Part part, UploadSpool.SpoolFile spoolFile, UploadMemoryBudget.Reservation reservation)
 	{
 		Args.notNull(part, "part");
 		this.part = part;
+		this.spoolFile = spoolFile;
+		this.reservation = reservation;
+
+		// parts parsed by the container may carry a content type for plain fields too
+		this.isFormField = part.getSubmittedFileName() == null;
+	}
+
+	/**
+	 * @param stageResults
+	 *            the results of the {@link UploadStage}s the part was streamed through
+	 */
+	void setStageResults(Map<String, Object> stageResults)
+	{
+		this.stageResults = Args.notNull(stageResults, "stageResults");
+	}
+
+	/**
+	 * @return the results of the {@link UploadStage}s the part was streamed through, by stage
+	 *         name; a failed stage has its exception as result
+	 */
+	Map<String, Object> getStageResults()
+	{
+		return stageResults;
+	}
 
-		String contentType = part.getContentType();
-		this.isFormField = contentType == null;
+	/**
+	 * Keeps the spool file of this part beyond the request, until the returned reference is
+	 * released.
+	 *
+	 * @return the retained spool file, or {@code null} if the part is not spooled by this
+	 *         application
+	 */
+	UploadSpool.SpoolFile retain()
+	{
+		return spoolFile != null ? spoolFile.retain() : null;
+	}
+
+	/**
+	 * Gives up the reference of this part to its spool file and its memory reservation, at most
+	 * once.
+	 */
+	void release()
+	{
+		if (released.compareAndSet(false, true))
+		{
+			if (spoolFile != null)
+			{
+				spoolFile.release();
+			}
+			if (reservation != null)
+			{
+				reservation.release();
+			}
+		}
 	}
 
 	@Override
@@ -136,13 +226,25 @@ class ServletPartFileItem implements FileItem
 	@Override
 	public ServletPartFileItem write(Path path) throws IOException
 	{
-		part.write(path.toFile().getName());
+		// Part#write resolves relative names against the upload location, not the working directory
+		part.write(path.toAbsolutePath().toString());
+		if (spoolFile != null)
+		{
+			// the spool file was moved there, or copied if that was not possible
+			release();
+		}
 		return this;
 	}
 
 	@Override
 	public ServletPartFileItem delete()
 	{
+		if (spoolFile != null)
+		{
+			// deleted in the background, once nobody else retains it
+			release();
+			return this;
+		}
 		try
 		{
 			part.delete();
@@ -151,6 +253,7 @@ class ServletPartFileItem implements FileItem
 		{
 			throw new WicketRuntimeException("A problem occurred while deleting an upload part", iox);
 		}
+		release();
 		return this;
 	}
 
@@ -0,0 +1,220 @@
+package com.mycompany;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import org.apache.commons.fileupload2.core.FileItem;
+import org.apache.commons.fileupload2.core.FileUploadException;
+import org.apache.commons.fileupload2.core.FileUploadSizeException;
+import org.apache.tomcat.util.http.fileupload.impl.SizeException;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.markup.html.form.upload.FileUpload;
+import org.apache.wicket.markup.html.form.upload.resource.IUploadsFileManager;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.protocol.http.servlet.UploadInfo;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Bytes;
+import com.github.openjson.JSONArray;
+import com.github.openjson.JSONObject;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * An upload endpoint for API style uploaders that needs neither a session nor a page. Each upload
+ * is authorised by a token from {@link UploadTokens}, sent in the {@value #TOKEN_HEADER} header;
+ * the files are saved under the upload ID the token was issued for and the progress is tracked in
+ * an {@link UploadProgressRegistry}, where {@link UploadProgressResource} looks it up by the same
+ * token. Tokens in the {@value #TOKEN_PARAMETER} query parameter are only accepted if
+ * {@link UploadTokens#setQueryTimeToLive(Duration)} allows them, and only short-lived
+ * ones.
+ * <p>
+ * A token authorises a single upload: its upload ID cannot be claimed again while the registry
+ * remembers it.
+ * <p>
+ * This is not an {@code AbstractFileUploadResource}, although it saves through the same
+ * {@link IUploadsFileManager}: that resource reads the upload ID from the request parameters,
+ * which makes the container parse the whole body before anything is authorised, keeps the
+ * progress in the session, has no way to authorise an upload and answers errors with status 200.
+ */
+public class StatelessUploadResource implements IResource
+{
+	private static final long serialVersionUID = 1L;
+
+	/** the header carrying the token */
+	public static final String TOKEN_HEADER = "X-Upload-Token";
+
+	/**
+	 * the query parameter carrying the token, for clients that cannot set headers; refused unless
+	 * {@link UploadTokens#setQueryTimeToLive(Duration)} allows it
+	 */
+	public static final String TOKEN_PARAMETER = "token";
+
+	private final IUploadsFileManager fileManager;
+
+	private final UploadTokens tokens;
+
+	private final UploadProgressRegistry registry;
+
+	private final Bytes maxSize;
+
+	/**
+	 * Constructor
+	 *
+	 * @param fileManager
+	 *            saves the uploaded files
+	 * @param tokens
+	 *            verifies the tokens
+	 * @param registry
+	 *            tracks the progress of the uploads
+	 * @param maxSize
+	 *            the maximum size of an upload request
+	 */
+	public StatelessUploadResource(IUploadsFileManager fileManager, UploadTokens tokens,
+		UploadProgressRegistry registry, Bytes maxSize)
+	{
+		this.fileManager = Args.notNull(fileManager, "fileManager");
+		this.tokens = Args.notNull(tokens, "tokens");
+		this.registry = Args.notNull(registry, "registry");
+		this.maxSize = Args.notNull(maxSize, "maxSize");
+	}
+
+	@Override
+	public void respond(Attributes attributes)
+	{
+		ServletWebRequest request = (ServletWebRequest)attributes.getRequest();
+		WebResponse response = (WebResponse)attributes.getResponse();
+
+		String uploadId = verifyToken(tokens, request);
+		if (uploadId == null)
+		{
+			error(response, HttpServletResponse.SC_UNAUTHORIZED, "upload.token.invalid");
+			return;
+		}
+		if (!"POST".equals(request.getContainerRequest().getMethod()))
+		{
+			error(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "upload.method.invalid");
+			return;
+		}
+		if (!registry.claim(uploadId, request.getContainerRequest().getContentLengthLong()))
+		{
+			error(response, HttpServletResponse.SC_CONFLICT, "upload.token.used");
+			return;
+		}
+
+		try
+		{
+			TomcatMultipartServletWebRequestImpl multipartRequest = newMultipartRequest(request, uploadId);
+			multipartRequest.parseFileParts();
+
+			JSONArray files = new JSONArray();
+			for (List<FileItem> items : multipartRequest.getFiles().values())
+			{
+				for (FileItem item : items)
+				{
+					FileUpload upload = new FileUpload(item);
+					fileManager.save(upload, uploadId);
+					files.put(new JSONObject()
+						.put("clientFileName", upload.getClientFileName())
+						.put("size", upload.getSize())
+						.put("contentType", upload.getContentType()));
+					upload.delete();
+				}
+			}
+			response.setContentType("application/json");
+			response.write(new JSONObject().put("uploadId", uploadId).put("files", files).toString());
+		}
+		catch (FileUploadSizeException e)
+		{
+			error(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "upload.too.large");
+		}
+		catch (FileUploadException | IllegalStateException e)
+		{
+			error(response, HttpServletResponse.SC_BAD_REQUEST, "upload.invalid");
+		}
+		catch (IOException e)
+		{
+			throw new WicketRuntimeException("Could not store the upload " + uploadId, e);
+		}
+		catch (RuntimeException e)
+		{
+			if (!(e.getCause() instanceof SizeException))
+			{
+				throw e;
+			}
+			error(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "upload.too.large");
+		}
+		finally
+		{
+			registry.completed(uploadId);
+		}
+	}
+
+	/**
+	 * Creates the multipart request of an upload, tracking its progress in the registry rather
+	 * than in the session.
+	 *
+	 * @param request
+	 *            the request
+	 * @param uploadId
+	 *            the ID of the upload
+	 * @return the multipart request
+	 * @throws FileUploadException
+	 *             if the request cannot be parsed
+	 */
+	protected TomcatMultipartServletWebRequestImpl newMultipartRequest(ServletWebRequest request,
+		String uploadId) throws FileUploadException
+	{
+		return new TomcatMultipartServletWebRequestImpl(request.getContainerRequest(),
+			request.getFilterPrefix(), maxSize, uploadId)
+		{
+			@Override
+			protected void storeUploadInfo(UploadInfo info)
+			{
+				registry.store(uploadId, info);
+			}
+
+			@Override
+			protected UploadInfo loadUploadInfo()
+			{
+				return registry.get(uploadId);
+			}
+
+			@Override
+			protected void removeUploadInfo()
+			{
+				registry.completed(uploadId);
+			}
+		};
+	}
+
+	/**
+	 * Verifies the token without touching the body: the header, or the query string if the tokens
+	 * allow it, never the POST parameters, which would make the container parse the multipart
+	 * request.
+	 *
+	 * @return the upload ID the token was issued for, or {@code null}
+	 */
+	static String verifyToken(UploadTokens tokens, ServletWebRequest request)
+	{
+		String token = request.getHeader(TOKEN_HEADER);
+		if (token != null)
+		{
+			return tokens.verify(token);
+		}
+		Duration queryTimeToLive = tokens.getQueryTimeToLive();
+		if (queryTimeToLive == null)
+		{
+			return null;
+		}
+		token = request.getQueryParameters().getParameterValue(TOKEN_PARAMETER).toOptionalString();
+		return tokens.verify(token, queryTimeToLive);
+	}
+
+	static void error(WebResponse response, int status, String key)
+	{
+		response.setStatus(status);
+		response.setContentType("application/json");
+		response.write(new JSONObject().put("error", true).put("errorMessage", key).toString());
+	}
+}
@@ -0,0 +1,179 @@
+package com.mycompany;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear histogram in the spirit of HdrHistogram: every power of two is split into
+ * {@value #SUB_BUCKETS} linear sub-buckets, which keeps the relative error of the reported
+ * percentiles around 6% whatever the magnitude of the values.
+ * <p>
+ * Each bucket is a {@link LongAdder}, so concurrent recorders never contend on a single cache
+ * line. Reads are not atomic snapshots, which is fine for monitoring purposes.
+ */
+public class StripedHistogram implements StripedHistogramMBean
+{
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** values above 2^41 (about 25 days in microseconds) are clamped into the last bucket */
+	private static final int MAX_EXPONENT = 40;
+
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Constructor
+	 */
+	public StripedHistogram()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 *
+	 * @param value
+	 *            the value to record
+	 */
+	public void record(long value)
+	{
+		long v = Math.min(Math.max(value, 0), MAX_VALUE);
+		buckets[indexOf(v)].increment();
+		count.increment();
+		sum.add(v);
+		max.accumulate(v);
+	}
+
+	/**
+	 * Records the time elapsed since {@code startNanos}, in microseconds.
+	 *
+	 * @param startNanos
+	 *            a value previously obtained from {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos)
+	{
+		record((System.nanoTime() - startNanos) / 1000L);
+	}
+
+	@Override
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	@Override
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double)sum.sum() / n;
+	}
+
+	@Override
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	@Override
+	public long getP50()
+	{
+		return getPercentile(50);
+	}
+
+	@Override
+	public long getP90()
+	{
+		return getPercentile(90);
+	}
+
+	@Override
+	public long getP99()
+	{
+		return getPercentile(99);
+	}
+
+	@Override
+	public long getP999()
+	{
+		return getPercentile(99.9);
+	}
+
+	/**
+	 * @param percentile
+	 *            a value between 0 and 100
+	 * @return the highest value equivalent to the requested percentile
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			snapshot[i] = buckets[i].sum();
+			total += snapshot[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+		long target = Math.max(1, (long)Math.ceil(total * percentile / 100d));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= target)
+			{
+				return Math.min(highestEquivalentValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public void reset()
+	{
+		for (LongAdder bucket : buckets)
+		{
+			bucket.reset();
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	private static int indexOf(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long highestEquivalentValue(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1L) << shift) - 1;
+	}
+}
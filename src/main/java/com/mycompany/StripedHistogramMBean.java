@@ -0,0 +1,47 @@
+package com.mycompany;
+
+/**
+ * JMX view of a {@link StripedHistogram}.
+ */
+public interface StripedHistogramMBean
+{
+	/**
+	 * @return the number of recorded values
+	 */
+	long getCount();
+
+	/**
+	 * @return the mean of the recorded values
+	 */
+	double getMean();
+
+	/**
+	 * @return the largest recorded value
+	 */
+	long getMax();
+
+	/**
+	 * @return the median
+	 */
+	long getP50();
+
+	/**
+	 * @return the 90th percentile
+	 */
+	long getP90();
+
+	/**
+	 * @return the 99th percentile
+	 */
+	long getP99();
+
+	/**
+	 * @return the 99.9th percentile
+	 */
+	long getP999();
+
+	/**
+	 * Clears all the recorded values.
+	 */
+	void reset();
+}
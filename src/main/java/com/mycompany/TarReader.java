@@ -0,0 +1,264 @@
+package com.mycompany;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A forward-only reader of the entries of a ustar archive, with the GNU long name and pax path
+ * and size extensions. Links, folders and special files are returned too, {@link #isFile()} tells
+ * the regular files apart.
+ */
+class TarReader
+{
+	private static final int BLOCK = 512;
+
+	private final InputStream in;
+
+	private final byte[] header = new byte[BLOCK];
+
+	/** unread bytes of the current entry */
+	private long remaining;
+
+	/** padding after the current entry */
+	private long padding;
+
+	private long size;
+
+	private boolean file;
+
+	/**
+	 * Constructor
+	 *
+	 * @param in
+	 *            the archive, read but never closed
+	 */
+	TarReader(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Skips what is left of the current entry and moves to the next one.
+	 *
+	 * @return the name of the entry, or {@code null} at the end of the archive
+	 * @throws IOException
+	 *             if the archive is truncated or not a tar archive
+	 */
+	String nextEntry() throws IOException
+	{
+		in.skipNBytes(remaining + padding);
+		remaining = 0;
+		padding = 0;
+
+		String longName = null;
+		long paxSize = -1;
+		while (true)
+		{
+			int read = in.readNBytes(header, 0, BLOCK);
+			if (read == 0)
+			{
+				return null;
+			}
+			if (read < BLOCK)
+			{
+				throw new EOFException("Truncated tar header");
+			}
+			if (isZero(header))
+			{
+				return null;
+			}
+			verifyChecksum();
+
+			long entrySize = parseNumber(124, 12);
+			long entryPadding = (BLOCK - entrySize % BLOCK) % BLOCK;
+			byte type = header[156];
+			if (type == 'L' || type == 'x')
+			{
+				if (entrySize > 1 << 20)
+				{
+					throw new IOException("Tar extension header too large: " + entrySize);
+				}
+				byte[] data = in.readNBytes((int)entrySize);
+				in.skipNBytes(entryPadding);
+				if (type == 'L')
+				{
+					longName = cString(data, 0, data.length);
+				}
+				else
+				{
+					String path = paxValue(data, "path");
+					longName = path != null ? path : longName;
+					String paxSizeValue = paxValue(data, "size");
+					paxSize = paxSizeValue != null ? Long.parseLong(paxSizeValue) : paxSize;
+				}
+				continue;
+			}
+
+			if (paxSize >= 0)
+			{
+				entrySize = paxSize;
+				entryPadding = (BLOCK - entrySize % BLOCK) % BLOCK;
+			}
+
+			String name = longName;
+			if (name == null)
+			{
+				name = cString(header, 0, 100);
+				if (cString(header, 257, 5).equals("ustar"))
+				{
+					String prefix = cString(header, 345, 155);
+					name = prefix.isEmpty() ? name : prefix + '/' + name;
+				}
+			}
+			file = type == '0' || type == 0;
+			size = entrySize;
+			remaining = entrySize;
+			padding = entryPadding;
+			return name;
+		}
+	}
+
+	/**
+	 * @return whether the current entry is a regular file
+	 */
+	boolean isFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return the size of the current entry
+	 */
+	long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the content of the current entry; closing it does not close the archive
+	 */
+	InputStream entryStream()
+	{
+		return new InputStream()
+		{
+			@Override
+			public int read() throws IOException
+			{
+				if (remaining <= 0)
+				{
+					return -1;
+				}
+				int b = in.read();
+				if (b < 0)
+				{
+					throw new EOFException("Truncated tar entry");
+				}
+				remaining--;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				if (remaining <= 0)
+				{
+					return -1;
+				}
+				int n = in.read(b, off, (int)Math.min(len, remaining));
+				if (n < 0)
+				{
+					throw new EOFException("Truncated tar entry");
+				}
+				remaining -= n;
+				return n;
+			}
+		};
+	}
+
+	private void verifyChecksum() throws IOException
+	{
+		long expected = parseNumber(148, 8);
+		long sum = 0;
+		for (int i = 0; i < BLOCK; i++)
+		{
+			sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+		}
+		if (sum != expected)
+		{
+			throw new IOException("Not a tar archive, or a corrupt header");
+		}
+	}
+
+	private long parseNumber(int offset, int length) throws IOException
+	{
+		if ((header[offset] & 0x80) != 0)
+		{
+			// base-256, used for sizes of 8GiB and more
+			long value = header[offset] & 0x7F;
+			for (int i = 1; i < length; i++)
+			{
+				value = (value << 8) | (header[offset + i] & 0xFF);
+			}
+			return value;
+		}
+		long value = 0;
+		for (int i = offset; i < offset + length; i++)
+		{
+			byte b = header[i];
+			if (b == 0 || b == ' ')
+			{
+				if (value != 0)
+				{
+					break;
+				}
+				continue;
+			}
+			if (b < '0' || b > '7')
+			{
+				throw new IOException("Invalid octal number in tar header");
+			}
+			value = (value << 3) + (b - '0');
+		}
+		return value;
+	}
+
+	private static String paxValue(byte[] data, String key)
+	{
+		// records are "<length> <key>=<value>\n"
+		String records = new String(data, StandardCharsets.UTF_8);
+		String prefix = ' ' + key + '=';
+		for (String record : records.split("\n"))
+		{
+			int start = record.indexOf(prefix);
+			if (start > 0)
+			{
+				return record.substring(start + prefix.length());
+			}
+		}
+		return null;
+	}
+
+	private static String cString(byte[] bytes, int offset, int length)
+	{
+		int end = offset;
+		while (end < offset + length && bytes[end] != 0)
+		{
+			end++;
+		}
+		return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isZero(byte[] block)
+	{
+		for (byte b : block)
+		{
+			if (b != 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
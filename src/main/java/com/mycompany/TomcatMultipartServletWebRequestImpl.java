@@ -21,7 +21,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.catalina.core.ApplicationPart;
@@ -29,19 +32,24 @@ import org.apache.commons.fileupload2.core.FileItem;
 import org.apache.commons.fileupload2.core.FileItemFactory;
 import org.apache.commons.fileupload2.core.FileUploadByteCountLimitException;
 import org.apache.commons.fileupload2.core.FileUploadException;
+import org.apache.commons.fileupload2.core.FileUploadSizeException;
 import org.apache.commons.fileupload2.jakarta.servlet5.JakartaServletFileUpload;
 //import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletFileUpload;
 import org.apache.tomcat.util.http.fileupload.FileUpload;
 import org.apache.tomcat.util.http.fileupload.ProgressListener;
-import org.apache.tomcat.util.http.fileupload.servlet.ServletRequestContext;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItem;
+import org.apache.tomcat.util.http.fileupload.impl.FileCountLimitExceededException;
+import org.apache.tomcat.util.http.fileupload.impl.SizeException;
 import org.apache.wicket.Application;
 import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.protocol.http.servlet.MultipartServletWebRequest;
+import org.apache.wicket.protocol.http.servlet.MultipartServletWebRequestImpl;
 import org.apache.wicket.protocol.http.servlet.UploadInfo;
 import org.apache.wicket.util.lang.Args;
 import org.apache.wicket.util.lang.Bytes;
 import org.apache.wicket.util.string.StringValue;
 import org.apache.wicket.util.value.ValueMap;
+import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.Part;
 
@@ -67,10 +75,16 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 	/**
 	 * total bytes uploaded (downloaded from server's pov) so far. used for upload notifications
 	 */
-	private int bytesUploaded;
+	private long bytesUploaded;
 
 	/** content length cache, used for upload notifications */
-	private int totalBytes;
+	private long totalBytes;
+
+	/** whether to adopt the parts when the container has already parsed the request */
+	private boolean reuseContainerParts = true;
+
+	/** whether to parse the body with {@link ScanningFileUpload} instead of Tomcat's parser */
+	private boolean useScanningParser = Boolean.getBoolean("uploads.scanningParser");
 
 	/**
 	 * Constructor
@@ -108,8 +122,47 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 		setMaxSize(maxSize);
 	}
 
+	/**
+	 * @return whether the parts parsed by the container are adopted when it has already consumed
+	 *         the request body
+	 */
+	public boolean isReuseContainerParts()
+	{
+		return reuseContainerParts;
+	}
+
+	/**
+	 * @param reuseContainerParts
+	 *            whether the parts parsed by the container are adopted when it has already
+	 *            consumed the request body
+	 */
+	public void setReuseContainerParts(boolean reuseContainerParts)
+	{
+		this.reuseContainerParts = reuseContainerParts;
+	}
+
+	/**
+	 * @return whether the body is parsed with {@link ScanningFileUpload}, which is faster on large
+	 *         files; defaults to the {@code uploads.scanningParser} system property
+	 */
+	public boolean isUseScanningParser()
+	{
+		return useScanningParser;
+	}
+
+	/**
+	 * @param useScanningParser
+	 *            whether the body is parsed with {@link ScanningFileUpload} instead of Tomcat's
+	 *            parser
+	 */
+	public void setUseScanningParser(boolean useScanningParser)
+	{
+		this.useScanningParser = useScanningParser;
+	}
+
 	// LOOK for references in wicket code to this. In particular AbstractFileUploadResource, look that before calling this method we are accessing a parameter uploadId... this is what triggers tomcat parsing multipart
-	// and the exhaustion of the Stream, thus we ge no "files" here.
+	// and the exhaustion of the Stream. Unless reuseContainerParts is disabled, the parts the container produced are then adopted
+	// instead of parsing an exhausted stream.
 	@Override
 	public void parseFileParts() throws FileUploadException
 	{
@@ -128,20 +181,30 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 			encoding = Application.get().getRequestCycleSettings().getResponseRequestEncoding();
 		}
 
-		File location = new File(System.getProperty("java.io.tmpdir"));
+		if (isReuseContainerParts() && isParsedByContainer(request))
+		{
+			adoptContainerParts(request, encoding);
+			return;
+		}
+
+		UploadSpool spool = UploadSpool.get();
+		File location = spool.getDirectory();
+		UploadTracer tracer = new UploadTracer(this.upload);
 		// Create a new file upload handler
-		org.apache.tomcat.util.http.fileupload.disk.DiskFileItemFactory factory = new org.apache.tomcat.util.http.fileupload.disk.DiskFileItemFactory();
-		factory.setRepository(location);
+		UploadFileItemFactory factory = new UploadFileItemFactory(location, this.upload, tracer, UploadPipeline.get());
 
-		FileUpload upload = new FileUpload();
+		FileUpload upload = isUseScanningParser() ? new ScanningFileUpload() : new FileUpload();
 		if (wantUploadProgressUpdates()) {
 			upload.setProgressListener(new ProgressListener() {
 				@Override
 				public void update(long pBytesRead, long pContentLength, int pItems) {
-					onUploadUpdate(pBytesRead, pContentLength);
+					onUploadUpdate(pBytesRead, pContentLength, pItems, factory.getItemName(pItems));
 				}
 			});
-			totalBytes = request.getContentLength();
+			// HTTP/2 and chunked requests need not announce their length, and getContentLength()
+			// gives up beyond 2GiB: an unknown length is tracked as 0 instead of -1
+			long contentLength = request.getContentLengthLong();
+			totalBytes = Math.max(contentLength, 0);
 			onUploadStarted(totalBytes);
 		}
 		upload.setFileItemFactory(factory);
@@ -151,16 +214,46 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 		List<FileItem> items = new ArrayList<>();
 
 		List<Part> parts = new ArrayList<>();
+		// the spool files not handed to a part yet
+		Map<org.apache.tomcat.util.http.fileupload.FileItem, UploadSpool.SpoolFile> spoolFiles = new IdentityHashMap<>();
+		UploadMetrics metrics = UploadMetrics.get();
+		long parseStart = System.nanoTime();
+		metrics.uploadStarted();
 		try {
 
-			List<org.apache.tomcat.util.http.fileupload.FileItem> items1 = upload.parseRequest(new ServletRequestContext(request));
+			long spoolStart = System.nanoTime();
+			List<org.apache.tomcat.util.http.fileupload.FileItem> items1 = upload.parseRequest(new MeteredRequestContext(request, metrics, tracer));
+			metrics.spooled(spoolStart, items1.size());
+			for (org.apache.tomcat.util.http.fileupload.FileItem item : items1) {
+				if (!item.isInMemory()) {
+					spoolFiles.put(item, spool.track(((DiskFileItem) item).getStoreLocation(), item.getSize()));
+				}
+			}
 			int maxPostSize = Integer.MAX_VALUE;
 			int postSize = 0;
 			Charset charset = getCharset();
 			for (org.apache.tomcat.util.http.fileupload.FileItem item : items1) {
+				// the stages ran while the item was spooled, at most their lag is left to wait for
+				PartTee tee = factory.getTee(item);
+				Map<String, Object> stageResults = tee != null ? tee.await() : Collections.emptyMap();
+				UploadSpool.SpoolFile spoolFile = spoolFiles.remove(item);
+				UploadMemoryBudget.Reservation reservation = factory.claimReservation(item);
+				if (tee != null && (tee.getVeto() != null || tee.isConsuming())) {
+					if (tee.getVeto() != null) {
+						metrics.partVetoed();
+					}
+					// else taken over by a stage, e.g. an archive extracted into the storage
+					release(item, spoolFile);
+					if (reservation != null) {
+						reservation.release();
+					}
+					continue;
+				}
 				ApplicationPart part = new ApplicationPart(item, location);
 				parts.add(part);
-				FileItem fileItem = new ServletPartFileItem(part);
+				ServletPartFileItem fileItem = new ServletPartFileItem(part, spoolFile, reservation);
+				UploadSpool.releaseOnDetach(fileItem);
+				fileItem.setStageResults(stageResults);
 				items.add(fileItem);
 				if (part.getSubmittedFileName() == null) {
 					String name = part.getName();
@@ -180,23 +273,170 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 					}
 				}
 			}
+		} catch (SizeException | FileCountLimitExceededException e) {
+			metrics.uploadRejected();
+			throw new RuntimeException(e);
 		} catch (IOException e) {
+			metrics.uploadAborted();
 			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			metrics.uploadAborted();
+			throw e;
 		}
 		finally
 		{
+			factory.abort();
+			for (UploadSpool.SpoolFile spoolFile : spoolFiles.values()) {
+				spoolFile.release();
+			}
+			tracer.finished(request.getContentLengthLong());
+			metrics.uploadFinished();
 			if (wantUploadProgressUpdates()) {
 				onUploadCompleted();
 			}
 		}
 
+		addItems(items, encoding, tracer);
+		metrics.parsed(parseStart);
+	}
+
+	/**
+	 * Drops an item, leaving the deletion of its spool file to the spool.
+	 */
+	private static void release(org.apache.tomcat.util.http.fileupload.FileItem item, UploadSpool.SpoolFile spoolFile)
+	{
+		if (spoolFile != null)
+		{
+			spoolFile.release();
+		}
+		else
+		{
+			item.delete();
+		}
+	}
+
+	/**
+	 * Tells whether the container has already parsed the multipart body, typically because a
+	 * request parameter was read before {@link #parseFileParts()}. Wicket sets the request
+	 * character encoding before anything can read a parameter, so the container decoded the form
+	 * fields with the same charset this class uses.
+	 *
+	 * @param request
+	 *            the container request
+	 * @return true if the body has been consumed and the container parts should be adopted
+	 */
+	protected boolean isParsedByContainer(HttpServletRequest request)
+	{
+		if (request.getContentLengthLong() == 0)
+		{
+			return false;
+		}
+		try
+		{
+			return request.getInputStream().isFinished();
+		}
+		catch (IOException | IllegalStateException e)
+		{
+			// the body was read through getReader(), there are no parts to adopt either
+			return false;
+		}
+	}
+
+	/**
+	 * Uses the parts the container parsed and spooled instead of parsing the request again. The
+	 * container owns, and deletes, their spool files. The upload is accounted for like a parsed
+	 * one, but as the body has already been read its progress goes from start to end at once.
+	 */
+	private void adoptContainerParts(HttpServletRequest request, String encoding) throws FileUploadException
+	{
+		UploadMetrics metrics = UploadMetrics.get();
+		long parseStart = System.nanoTime();
+		UploadTracer tracer = new UploadTracer(upload);
+		long contentLength = request.getContentLengthLong();
+		if (wantUploadProgressUpdates())
+		{
+			totalBytes = Math.max(contentLength, 0);
+			onUploadStarted(totalBytes);
+		}
+		metrics.uploadStarted();
+		List<FileItem> items;
+		try
+		{
+			Collection<Part> containerParts;
+			try
+			{
+				containerParts = request.getParts();
+			}
+			catch (IOException | ServletException e)
+			{
+				metrics.uploadAborted();
+				throw new FileUploadException("Could not get the parts parsed by the container", e);
+			}
+
+			items = new ArrayList<>(containerParts.size());
+			Bytes fileMaxSize = getFileMaxSize();
+			long totalSize = 0;
+			for (Part part : containerParts)
+			{
+				totalSize += part.getSize();
+				if (part.getSubmittedFileName() != null && fileMaxSize != null && part.getSize() > fileMaxSize.bytes())
+				{
+					metrics.uploadRejected();
+					throw new FileUploadByteCountLimitException("The field '" + part.getName() +
+						"' exceeds its maximum permitted size of '" + fileMaxSize + "' characters.",
+						part.getSize(), fileMaxSize.bytes(), part.getSubmittedFileName(), part.getName());
+				}
+				items.add(new ServletPartFileItem(part));
+			}
+			if (totalSize > getMaxSize().bytes())
+			{
+				metrics.uploadRejected();
+				throw new FileUploadSizeException("The request exceeds its maximum permitted size of '" +
+					getMaxSize() + "'.", getMaxSize().bytes(), totalSize);
+			}
+			tracer.partsAdopted(items.size(), Math.max(contentLength, totalSize));
+			metrics.adopted(items.size());
+			if (wantUploadProgressUpdates())
+			{
+				// no part by part update: the time the container took to read them is unknown, the
+				// transfer rate of the parts would be made up
+				bytesUploaded = Math.max(contentLength, totalSize);
+				onUploadUpdate(bytesUploaded, totalBytes);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			metrics.uploadAborted();
+			throw e;
+		}
+		finally
+		{
+			tracer.finished(contentLength);
+			metrics.uploadFinished();
+			if (wantUploadProgressUpdates())
+			{
+				onUploadCompleted();
+			}
+		}
+
+		addItems(items, encoding, tracer);
+		metrics.parsed(parseStart);
+	}
+
+	/**
+	 * Sorts the items into form field parameters and files.
+	 */
+	private void addItems(List<FileItem> items, String encoding, UploadTracer tracer)
+	{
 		// Loop through items
+		int index = 0;
 		for (final FileItem item : items)
 		{
 			// Get next item
 			// If item is a form field
 			if (item.isFormField())
 			{
+				UploadEvents.FieldDecode decodeEvent = tracer.fieldDecodeStarted();
 				// Set parameter value
 				final String value;
 				if (encoding != null)
@@ -216,6 +456,7 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 				}
 
 				addParameter(item.getFieldName(), value);
+				tracer.fieldDecoded(decodeEvent, index, item.getFieldName(), item.getSize());
 			}
 			else
 			{
@@ -228,6 +469,7 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 				// Add to file list
 				fileItems.add(item);
 			}
+			index++;
 		}
 	}
 
@@ -318,12 +560,13 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 	 * Upload start callback
 	 *
 	 * @param totalBytes
+	 *            the size of the request, 0 if unknown
 	 */
-	protected void onUploadStarted(int totalBytes)
+	protected void onUploadStarted(long totalBytes)
 	{
-		UploadInfo info = new UploadInfo(totalBytes);
+		UploadInfo info = new UploadProgress(totalBytes, UploadMetrics.get());
 
-		setUploadInfo(getContainerRequest(), upload, info);
+		storeUploadInfo(info);
 	}
 
 	/**
@@ -334,22 +577,81 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 	 */
 	protected void onUploadUpdate(long bytesUploaded, long total)
 	{
-		HttpServletRequest request = getContainerRequest();
-		UploadInfo info = getUploadInfo(request, upload);
+		UploadInfo info = loadUploadInfo();
 		if (info == null)
 		{
 			throw new IllegalStateException(
-				"could not find UploadInfo object in session which should have been set when uploaded started");
+				"could not find UploadInfo object which should have been stored when uploaded started");
 		}
 		info.setBytesUploaded(bytesUploaded);
 
-		setUploadInfo(request, upload, info);
+		storeUploadInfo(info);
+	}
+
+	/**
+	 * Upload status update callback of the parser
+	 *
+	 * @param bytesUploaded
+	 *            the bytes of the request read so far
+	 * @param total
+	 *            the size of the request, -1 if unknown
+	 * @param item
+	 *            the number of the part being read, from 1, 0 before the first one
+	 * @param name
+	 *            the client file name, or field name, of that part, {@code null} if not known yet
+	 */
+	protected void onUploadUpdate(long bytesUploaded, long total, int item, String name)
+	{
+		UploadInfo info = loadUploadInfo();
+		if (info instanceof UploadProgress)
+		{
+			((UploadProgress)info).update(bytesUploaded, item, name);
+			storeUploadInfo(info);
+		}
+		else
+		{
+			onUploadUpdate(bytesUploaded, total);
+		}
 	}
 
 	/**
 	 * Upload completed callback
 	 */
 	protected void onUploadCompleted()
+	{
+		UploadInfo info = loadUploadInfo();
+		if (info instanceof UploadProgress)
+		{
+			((UploadProgress)info).completed();
+		}
+		removeUploadInfo();
+	}
+
+	/**
+	 * Stores the progress of this upload, by default in the session. Override together with
+	 * {@link #loadUploadInfo()} and {@link #removeUploadInfo()} to track uploads without a session.
+	 *
+	 * @param info
+	 *            the progress
+	 */
+	protected void storeUploadInfo(UploadInfo info)
+	{
+		setUploadInfo(getContainerRequest(), upload, info);
+	}
+
+	/**
+	 * @return the progress of this upload stored by {@link #storeUploadInfo(UploadInfo)}, or
+	 *         {@code null}
+	 */
+	protected UploadInfo loadUploadInfo()
+	{
+		return getUploadInfo(getContainerRequest(), upload);
+	}
+
+	/**
+	 * Removes the progress of this upload once it is completed.
+	 */
+	protected void removeUploadInfo()
 	{
 		clearUploadInfo(getContainerRequest(), upload);
 	}
@@ -439,15 +741,11 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 		return this;
 	}
 
-	private static final String SESSION_KEY = TomcatMultipartServletWebRequestImpl.class.getName();
-
-	private static String getSessionKey(String upload)
-	{
-		return SESSION_KEY + ":" + upload;
-	}
-
 	/**
-	 * Retrieves {@link UploadInfo} from session, null if not found.
+	 * Retrieves {@link UploadInfo} from session, null if not found. The session key is the one of
+	 * {@link MultipartServletWebRequestImpl}, where
+	 * {@link org.apache.wicket.extensions.ajax.markup.html.form.upload.UploadStatusResource} looks
+	 * the progress up.
 	 *
 	 * @param req
 	 *            http servlet request, not null
@@ -457,8 +755,7 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 	 */
 	public static UploadInfo getUploadInfo(final HttpServletRequest req, String upload)
 	{
-		Args.notNull(req, "req");
-		return (UploadInfo)req.getSession().getAttribute(getSessionKey(upload));
+		return MultipartServletWebRequestImpl.getUploadInfo(req, upload);
 	}
 
 	/**
@@ -474,10 +771,7 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 	public static void setUploadInfo(final HttpServletRequest req, String upload,
 		final UploadInfo uploadInfo)
 	{
-		Args.notNull(req, "req");
-		Args.notNull(upload, "upload");
-		Args.notNull(uploadInfo, "uploadInfo");
-		req.getSession().setAttribute(getSessionKey(upload), uploadInfo);
+		MultipartServletWebRequestImpl.setUploadInfo(req, upload, uploadInfo);
 	}
 
 	/**
@@ -490,9 +784,7 @@ public class TomcatMultipartServletWebRequestImpl extends MultipartServletWebReq
 	 */
 	public static void clearUploadInfo(final HttpServletRequest req, String upload)
 	{
-		Args.notNull(req, "req");
-		Args.notNull(upload, "upload");
-		req.getSession().removeAttribute(getSessionKey(upload));
+		MultipartServletWebRequestImpl.clearUploadInfo(req, upload);
 	}
 
 }
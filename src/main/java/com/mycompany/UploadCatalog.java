@@ -0,0 +1,411 @@
+package com.mycompany;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the stored uploads, keyed by upload field ID and client file name.
+ * <p>
+ * The resident entries live in striped, access ordered maps, each bounded to its share of the
+ * capacity, so lookups are O(1) and threads only contend when they hit the same stripe. Every
+ * stored upload is appended to a journal, one {@link FileChannel#force(boolean) force} per call of
+ * {@link #addAll(List)}; each record carries a CRC so that a record torn by a crash is detected
+ * and truncated on the next start. The journal is replayed on start to warm the index and is
+ * compacted down to the resident entries once it holds twice the capacity.
+ * <p>
+ * The journal is only a cache of the storage folder, not its record: compaction drops the entries
+ * that were evicted from the index, and a journal that is lost or truncated only costs lookups.
+ * The storage layout is deterministic, so callers resolve misses with a single stat of the
+ * expected location and {@link #cache(Entry)} the result.
+ */
+class UploadCatalog
+{
+	private static final Logger LOG = LoggerFactory.getLogger(UploadCatalog.class);
+
+	private static final int MAGIC = 0x55504331; // "UPC1"
+
+	private static final int STRIPES = 16;
+
+	private final Map<String, Entry>[] stripes;
+
+	private final int capacity;
+
+	private final Path journalPath;
+
+	private FileChannel journal;
+
+	private long recordsInJournal;
+
+	/**
+	 * Constructor. Recovers the journal if there is one.
+	 *
+	 * @param journalPath
+	 *            the journal file
+	 * @param capacity
+	 *            the maximum number of resident entries
+	 */
+	@SuppressWarnings("unchecked")
+	UploadCatalog(Path journalPath, int capacity)
+	{
+		Args.withinRange(STRIPES, Integer.MAX_VALUE, capacity, "capacity");
+		this.journalPath = journalPath;
+		this.capacity = capacity;
+		int stripeCapacity = capacity / STRIPES;
+		stripes = new Map[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+		{
+			stripes[i] = new LinkedHashMap<>(16, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+				{
+					return size() > stripeCapacity;
+				}
+			};
+		}
+
+		try
+		{
+			Files.createDirectories(journalPath.getParent());
+			recover();
+			journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (journal.size() == 0)
+			{
+				journal.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, MAGIC));
+				journal.force(true);
+				syncDirectory(journalPath.getParent());
+			}
+			journal.position(journal.size());
+		}
+		catch (IOException e)
+		{
+			throw new WicketRuntimeException("Could not open the upload catalog " + journalPath, e);
+		}
+	}
+
+	/**
+	 * @param uploadFieldId
+	 *            the upload field ID
+	 * @param clientFileName
+	 *            the client file name
+	 * @return the resident entry, or {@code null}
+	 */
+	Entry get(String uploadFieldId, String clientFileName)
+	{
+		String key = key(uploadFieldId, clientFileName);
+		Map<String, Entry> stripe = stripe(key);
+		synchronized (stripe)
+		{
+			return stripe.get(key);
+		}
+	}
+
+	/**
+	 * Makes an entry resident without journaling it, e.g. after resolving a miss.
+	 *
+	 * @param entry
+	 *            the entry
+	 */
+	void cache(Entry entry)
+	{
+		String key = key(entry.uploadFieldId, entry.clientFileName);
+		Map<String, Entry> stripe = stripe(key);
+		synchronized (stripe)
+		{
+			stripe.put(key, entry);
+		}
+	}
+
+	/**
+	 * Journals and indexes newly stored uploads. The journal is forced once for all of them.
+	 *
+	 * @param entries
+	 *            the stored uploads
+	 * @throws IOException
+	 *             if the journal cannot be written
+	 */
+	synchronized void addAll(List<Entry> entries) throws IOException
+	{
+		if (entries.isEmpty())
+		{
+			return;
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		for (Entry entry : entries)
+		{
+			writeRecord(buffer, entry);
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+		while (bytes.hasRemaining())
+		{
+			journal.write(bytes);
+		}
+		journal.force(false);
+		recordsInJournal += entries.size();
+
+		for (Entry entry : entries)
+		{
+			cache(entry);
+		}
+
+		if (recordsInJournal > 2L * capacity)
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Closes the journal.
+	 */
+	synchronized void close()
+	{
+		try
+		{
+			journal.close();
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Could not close the upload catalog {}", journalPath, e);
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the resident entries only, the evicted ones are left to the storage
+	 * layout.
+	 *
+	 * @throws IOException
+	 *             if the new journal cannot be written
+	 */
+	synchronized void compact() throws IOException
+	{
+		List<Entry> resident = new ArrayList<>();
+		for (Map<String, Entry> stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				resident.addAll(stripe.values());
+			}
+		}
+
+		Path compacted = journalPath.resolveSibling(journalPath.getFileName() + ".compact");
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		new DataOutputStream(buffer).writeInt(MAGIC);
+		for (Entry entry : resident)
+		{
+			writeRecord(buffer, entry);
+		}
+		try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+			while (bytes.hasRemaining())
+			{
+				channel.write(bytes);
+			}
+			channel.force(true);
+		}
+
+		journal.close();
+		Files.move(compacted, journalPath, StandardCopyOption.ATOMIC_MOVE,
+			StandardCopyOption.REPLACE_EXISTING);
+		// the rename is only durable once the folder is
+		syncDirectory(journalPath.getParent());
+		journal = FileChannel.open(journalPath, StandardOpenOption.WRITE);
+		journal.position(journal.size());
+		recordsInJournal = resident.size();
+	}
+
+	private void recover() throws IOException
+	{
+		if (!Files.exists(journalPath))
+		{
+			return;
+		}
+		if (Files.size(journalPath) < Integer.BYTES)
+		{
+			// torn while being created, there is nothing to recover
+			Files.delete(journalPath);
+			return;
+		}
+		long valid = Integer.BYTES;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(journalPath)))
+		{
+			DataInputStream data = new DataInputStream(in);
+			if (data.readInt() != MAGIC)
+			{
+				throw new IOException("Not an upload catalog: " + journalPath);
+			}
+			CRC32 crc = new CRC32();
+			while (true)
+			{
+				int length = data.readInt();
+				long checksum = data.readInt() & 0xFFFFFFFFL;
+				if (length <= 0 || length > 1 << 20)
+				{
+					break;
+				}
+				byte[] payload = data.readNBytes(length);
+				crc.reset();
+				crc.update(payload);
+				if (payload.length < length || crc.getValue() != checksum)
+				{
+					break;
+				}
+				cache(readEntry(payload));
+				recordsInJournal++;
+				valid += 2 * Integer.BYTES + length;
+			}
+		}
+		catch (EOFException e)
+		{
+			// the end of the journal, possibly torn
+		}
+
+		if (valid < Files.size(journalPath))
+		{
+			LOG.warn("Truncating the torn tail of the upload catalog {} at {}", journalPath, valid);
+			try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE))
+			{
+				channel.truncate(valid);
+				channel.force(true);
+			}
+		}
+	}
+
+	private static void writeRecord(ByteArrayOutputStream buffer, Entry entry) throws IOException
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(payload);
+		data.writeUTF(entry.uploadFieldId);
+		data.writeUTF(entry.clientFileName);
+		data.writeUTF(entry.location.toString());
+		data.writeLong(entry.size);
+		data.writeLong(entry.storedAt);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.toByteArray());
+		DataOutputStream record = new DataOutputStream(buffer);
+		record.writeInt(payload.size());
+		record.writeInt((int)crc.getValue());
+		payload.writeTo(record);
+	}
+
+	private static Entry readEntry(byte[] payload) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		return new Entry(data.readUTF(), data.readUTF(), Path.of(data.readUTF()), data.readLong(),
+			data.readLong());
+	}
+
+	private static void syncDirectory(Path directory)
+	{
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+		catch (IOException e)
+		{
+			// some platforms (e.g. Windows) cannot open directories, renames are durable there anyway
+			LOG.debug("Could not sync directory {}", directory, e);
+		}
+	}
+
+	private Map<String, Entry> stripe(String key)
+	{
+		int hash = key.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+
+	private static String key(String uploadFieldId, String clientFileName)
+	{
+		// both may contain '/', the length keeps ("a/b", "c") and ("a", "b/c") apart
+		return uploadFieldId.length() + ":" + uploadFieldId + '/' + clientFileName;
+	}
+
+	/**
+	 * A stored upload.
+	 */
+	static final class Entry
+	{
+		private final String uploadFieldId;
+
+		private final String clientFileName;
+
+		private final Path location;
+
+		private final long size;
+
+		private final long storedAt;
+
+		/**
+		 * Constructor
+		 *
+		 * @param uploadFieldId
+		 *            the upload field ID
+		 * @param clientFileName
+		 *            the client file name
+		 * @param location
+		 *            where the upload is stored
+		 * @param size
+		 *            its size in bytes
+		 * @param storedAt
+		 *            when it was stored, in milliseconds since the epoch
+		 */
+		Entry(String uploadFieldId, String clientFileName, Path location, long size, long storedAt)
+		{
+			this.uploadFieldId = uploadFieldId;
+			this.clientFileName = clientFileName;
+			this.location = location;
+			this.size = size;
+			this.storedAt = storedAt;
+		}
+
+		String getUploadFieldId()
+		{
+			return uploadFieldId;
+		}
+
+		String getClientFileName()
+		{
+			return clientFileName;
+		}
+
+		Path getLocation()
+		{
+			return location;
+		}
+
+		long getSize()
+		{
+			return size;
+		}
+
+		long getStoredAt()
+		{
+			return storedAt;
+		}
+	}
+}
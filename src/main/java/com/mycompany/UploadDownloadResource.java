@@ -0,0 +1,419 @@
+package com.mycompany;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.apache.catalina.Globals;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.string.Strings;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the uploads stored by a {@link WriteBehindUploadsFileManager}, mounted with the
+ * {@value #UPLOAD_FIELD_ID} and {@value #CLIENT_FILE_NAME} placeholders.
+ * <p>
+ * Supports conditional requests with an ETag derived from the catalog metadata, and single and
+ * multiple byte ranges ({@code multipart/byteranges}) guarded by {@code If-Range}. The body is
+ * never read into the heap: a single region is handed to Tomcat's sendfile when the connector
+ * supports it, otherwise it goes through {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * which is zero-copy when the container output stream is itself a channel and a bounded copy
+ * loop when it is not.
+ * <p>
+ * An upload is only served to the session that saved it, or to a client presenting a token from
+ * {@link UploadTokens} for its upload ID in the {@value StatelessUploadResource#TOKEN_HEADER}
+ * header; anyone else gets a 404, as if it did not exist. The content type is guessed from the
+ * client file name, so only the types of {@link #INLINE_TYPES} are shown inline, everything else
+ * is an attachment, and every response is sandboxed and must not be sniffed: an uploaded HTML or
+ * SVG file never runs as script of this application.
+ */
+public class UploadDownloadResource implements IResource
+{
+	private static final long serialVersionUID = 1L;
+
+	/** the placeholder of the upload field ID in the mount path */
+	public static final String UPLOAD_FIELD_ID = "uploadFieldId";
+
+	/** the placeholder of the client file name in the mount path */
+	public static final String CLIENT_FILE_NAME = "clientFileName";
+
+	/** the content types that cannot run script, and are shown inline */
+	public static final Set<String> INLINE_TYPES = Set.of("image/png", "image/jpeg", "image/gif",
+		"image/webp", "audio/mpeg", "audio/ogg", "video/mp4", "video/webm", "text/plain");
+
+	/** more ranges than this are answered with the whole file */
+	private static final int MAX_RANGES = 16;
+
+	private final WriteBehindUploadsFileManager fileManager;
+
+	private final UploadTokens tokens;
+
+	/**
+	 * Constructor, serving uploads to the sessions that saved them only.
+	 *
+	 * @param fileManager
+	 *            the manager the uploads were saved with
+	 */
+	public UploadDownloadResource(WriteBehindUploadsFileManager fileManager)
+	{
+		this(fileManager, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param fileManager
+	 *            the manager the uploads were saved with
+	 * @param tokens
+	 *            verifies the tokens of the uploads saved without a session, may be {@code null}
+	 */
+	public UploadDownloadResource(WriteBehindUploadsFileManager fileManager, UploadTokens tokens)
+	{
+		this.fileManager = Args.notNull(fileManager, "fileManager");
+		this.tokens = tokens;
+	}
+
+	@Override
+	public void respond(Attributes attributes)
+	{
+		HttpServletRequest request = (HttpServletRequest)attributes.getRequest().getContainerRequest();
+		HttpServletResponse response = (HttpServletResponse)attributes.getResponse().getContainerResponse();
+		PageParameters parameters = attributes.getParameters();
+		response.setHeader("X-Content-Type-Options", "nosniff");
+		response.setHeader("Content-Security-Policy", "sandbox");
+
+		String uploadFieldId = parameters.get(UPLOAD_FIELD_ID).toString();
+		UploadCatalog.Entry entry;
+		try
+		{
+			// not found rather than forbidden, which would tell that the upload exists
+			entry = uploadFieldId != null && isAccessible(request, uploadFieldId)
+				? fileManager.getEntry(uploadFieldId, parameters.get(CLIENT_FILE_NAME).toString())
+				: null;
+		}
+		catch (IllegalArgumentException e)
+		{
+			entry = null;
+		}
+		if (entry == null)
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		try
+		{
+			respond(request, response, entry);
+		}
+		catch (IOException e)
+		{
+			throw new WicketRuntimeException("Could not send " + entry.getLocation(), e);
+		}
+	}
+
+	/**
+	 * Tells whether the requester may download the uploads saved under an upload field ID.
+	 *
+	 * @param request
+	 *            the request
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 * @return by default whether the session saved them, or the request carries a valid token
+	 *         for them
+	 */
+	protected boolean isAccessible(HttpServletRequest request, String uploadFieldId)
+	{
+		if (fileManager.isStoredBySession(uploadFieldId))
+		{
+			return true;
+		}
+		return tokens != null &&
+			uploadFieldId.equals(tokens.verify(request.getHeader(StatelessUploadResource.TOKEN_HEADER)));
+	}
+
+	private void respond(HttpServletRequest request, HttpServletResponse response,
+		UploadCatalog.Entry entry) throws IOException
+	{
+		long size = entry.getSize();
+		String etag = '"' + Long.toHexString(size) + '-' + Long.toHexString(entry.getStoredAt()) + '"';
+		String contentType = getContentType(entry.getClientFileName());
+
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", entry.getStoredAt());
+		response.setHeader("Content-Disposition", contentDisposition(
+			INLINE_TYPES.contains(contentType) ? "inline" : "attachment", entry.getClientFileName()));
+
+		if (matches(request.getHeader("If-None-Match"), etag))
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		List<long[]> ranges = null;
+		if (isRangeApplicable(request, etag, entry.getStoredAt()))
+		{
+			ranges = parseRanges(request.getHeader("Range"), size);
+		}
+		boolean head = "HEAD".equals(request.getMethod());
+
+		if (ranges != null && ranges.isEmpty())
+		{
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + size);
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(entry.getLocation(), StandardOpenOption.READ))
+		{
+			if (ranges == null || ranges.size() == 1)
+			{
+				long start = ranges == null ? 0 : ranges.get(0)[0];
+				long end = ranges == null ? size - 1 : ranges.get(0)[1];
+				if (ranges != null)
+				{
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.setHeader("Content-Range", contentRange(start, end, size));
+				}
+				response.setContentType(contentType);
+				response.setContentLengthLong(end - start + 1);
+				if (!head && !sendfile(request, entry, start, end))
+				{
+					transfer(channel, start, end - start + 1, response.getOutputStream());
+				}
+				return;
+			}
+
+			String boundary = UUID.randomUUID().toString().replace("-", "");
+			List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+			long length = 0;
+			for (long[] range : ranges)
+			{
+				byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType +
+					"\r\nContent-Range: " + contentRange(range[0], range[1], size) + "\r\n\r\n")
+						.getBytes(StandardCharsets.US_ASCII);
+				partHeaders.add(partHeader);
+				length += partHeader.length + range[1] - range[0] + 1;
+			}
+			byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+			length += trailer.length;
+
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType("multipart/byteranges; boundary=" + boundary);
+			response.setContentLengthLong(length);
+			if (head)
+			{
+				return;
+			}
+			OutputStream out = response.getOutputStream();
+			for (int i = 0; i < ranges.size(); i++)
+			{
+				long[] range = ranges.get(i);
+				out.write(partHeaders.get(i));
+				transfer(channel, range[0], range[1] - range[0] + 1, out);
+			}
+			out.write(trailer);
+		}
+	}
+
+	/**
+	 * Parses a {@code Range} header.
+	 *
+	 * @param header
+	 *            the header value, may be {@code null}
+	 * @param size
+	 *            the size of the file
+	 * @return {@code null} when the whole file should be sent, an empty list when none of the
+	 *         ranges can be satisfied, otherwise the inclusive [start, end] pairs in request order
+	 */
+	static List<long[]> parseRanges(String header, long size)
+	{
+		if (header == null || !header.startsWith("bytes="))
+		{
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<>();
+		for (String spec : Strings.split(header.substring("bytes=".length()), ','))
+		{
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+			{
+				return null;
+			}
+			try
+			{
+				long start;
+				long end;
+				if (dash == 0)
+				{
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix <= 0)
+					{
+						continue;
+					}
+					start = Math.max(0, size - suffix);
+					end = size - 1;
+				}
+				else
+				{
+					start = Long.parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1)
+					{
+						end = size - 1;
+					}
+					else
+					{
+						end = Long.parseLong(spec.substring(dash + 1));
+						if (end < start)
+						{
+							return null;
+						}
+					}
+				}
+				if (start >= size)
+				{
+					continue;
+				}
+				ranges.add(new long[] { start, Math.min(end, size - 1) });
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+		return ranges.size() > MAX_RANGES ? null : ranges;
+	}
+
+	private static boolean isRangeApplicable(HttpServletRequest request, String etag, long lastModified)
+	{
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null)
+		{
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+		{
+			// If-Range requires a strong comparison
+			return ifRange.equals(etag);
+		}
+		try
+		{
+			return request.getDateHeader("If-Range") / 1000 == lastModified / 1000;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	private static boolean matches(String ifNoneMatch, String etag)
+	{
+		if (ifNoneMatch == null)
+		{
+			return false;
+		}
+		for (String candidate : Strings.split(ifNoneMatch, ','))
+		{
+			candidate = candidate.trim();
+			if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Asks Tomcat to send the region with sendfile after the request has been handled.
+	 *
+	 * @return false if the connector does not support sendfile
+	 */
+	private static boolean sendfile(HttpServletRequest request, UploadCatalog.Entry entry, long start,
+		long end)
+	{
+		if (!Boolean.TRUE.equals(request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR)))
+		{
+			return false;
+		}
+		request.setAttribute(Globals.SENDFILE_FILENAME_ATTR, entry.getLocation().toAbsolutePath().toString());
+		request.setAttribute(Globals.SENDFILE_FILE_START_ATTR, start);
+		request.setAttribute(Globals.SENDFILE_FILE_END_ATTR, end + 1);
+		return true;
+	}
+
+	private static void transfer(FileChannel channel, long position, long count, OutputStream out)
+		throws IOException
+	{
+		// do not close the channel, it would close the response stream
+		WritableByteChannel target = out instanceof WritableByteChannel
+			? (WritableByteChannel)out : Channels.newChannel(out);
+		long remaining = count;
+		while (remaining > 0)
+		{
+			long sent = channel.transferTo(position, remaining, target);
+			if (sent <= 0)
+			{
+				throw new EOFException("The stored upload is shorter than its catalog entry");
+			}
+			position += sent;
+			remaining -= sent;
+		}
+	}
+
+	private static String contentRange(long start, long end, long size)
+	{
+		return "bytes " + start + '-' + end + '/' + size;
+	}
+
+	/**
+	 * @return the {@code Content-Disposition} header value naming the file as RFC 6266 asks: an
+	 *         ASCII {@code filename} for old clients, with anything else replaced by {@code _},
+	 *         and the exact name as UTF-8 in {@code filename*} (RFC 5987)
+	 */
+	static String contentDisposition(String type, String fileName)
+	{
+		StringBuilder fallback = new StringBuilder(fileName.length());
+		StringBuilder encoded = new StringBuilder(fileName.length());
+		for (int i = 0; i < fileName.length(); i++)
+		{
+			char c = fileName.charAt(i);
+			// quotes and backslashes are escapes in a quoted string
+			fallback.append(c >= 0x20 && c < 0x7f && c != '"' && c != '\\' ? c : '_');
+		}
+		for (byte b : fileName.getBytes(StandardCharsets.UTF_8))
+		{
+			int c = b & 0xff;
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+				"!#$&+-.^_`|~".indexOf(c) >= 0)
+			{
+				encoded.append((char)c);
+			}
+			else
+			{
+				encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+					.append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+		return type + "; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+	}
+
+	private static String getContentType(String fileName)
+	{
+		String contentType = WebApplication.get().getMimeType(fileName);
+		return contentType != null ? contentType : "application/octet-stream";
+	}
+}
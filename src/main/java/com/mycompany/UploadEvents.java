@@ -0,0 +1,135 @@
+package com.mycompany;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the phases of an upload request. They are recorded whenever a
+ * recording is running (e.g. {@code -XX:StartFlightRecording}) and can be switched off
+ * individually in the .jfc settings by their {@link Name}.
+ * <p>
+ * Callers check {@link Event#isEnabled()} before doing any extra work, so when no recording is
+ * running an event costs an allocation the JIT eliminates and one branch.
+ */
+final class UploadEvents
+{
+	private static final String CATEGORY = "Uploads";
+
+	private UploadEvents()
+	{
+	}
+
+	/**
+	 * A whole {@code parseFileParts()} call.
+	 */
+	@Name("com.mycompany.UploadRequest")
+	@Label("Upload Request")
+	@Category(CATEGORY)
+	@Description("Parsing of a multipart upload request")
+	@StackTrace(false)
+	static final class Request extends Event
+	{
+		@Label("Upload ID")
+		String uploadId;
+
+		@Label("Content Length")
+		@DataAmount
+		long contentLength;
+
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+
+		@Label("Parts")
+		int parts;
+
+		@Label("Network Read Time")
+		@Description("Time spent blocked reading the request body")
+		@Timespan(Timespan.NANOSECONDS)
+		long networkReadTime;
+	}
+
+	/**
+	 * Reading and spooling a single part through the {@code DiskFileItemFactory}.
+	 */
+	@Name("com.mycompany.UploadPart")
+	@Label("Upload Part")
+	@Category(CATEGORY)
+	@Description("Reading one multipart item from the network and spooling it")
+	@StackTrace(false)
+	static final class Part extends Event
+	{
+		@Label("Upload ID")
+		String uploadId;
+
+		@Label("Part Index")
+		int partIndex;
+
+		@Label("Field Name")
+		String fieldName;
+
+		@Label("File Name")
+		String fileName;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("In Memory")
+		boolean inMemory;
+
+		@Label("Network Read Time")
+		@Description("Part of the duration spent blocked reading the request body, the rest is spooling")
+		@Timespan(Timespan.NANOSECONDS)
+		long networkReadTime;
+	}
+
+	/**
+	 * Decoding a form field value in {@code parseFileParts()}.
+	 */
+	@Name("com.mycompany.UploadFieldDecode")
+	@Label("Upload Field Decode")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static final class FieldDecode extends Event
+	{
+		@Label("Upload ID")
+		String uploadId;
+
+		@Label("Part Index")
+		int partIndex;
+
+		@Label("Field Name")
+		String fieldName;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	/**
+	 * Storing an uploaded file with {@code IUploadsFileManager.save}.
+	 */
+	@Name("com.mycompany.UploadSave")
+	@Label("Upload Save")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static final class Save extends Event
+	{
+		@Label("Upload ID")
+		String uploadId;
+
+		@Label("File Name")
+		String fileName;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+}
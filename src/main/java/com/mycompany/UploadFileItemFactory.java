@@ -0,0 +1,220 @@
+package com.mycompany;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItem;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItemFactory;
+
+/**
+ * The {@link DiskFileItemFactory} used by {@link TomcatMultipartServletWebRequestImpl}. Tells the
+ * {@link UploadTracer} when the parser moves on to a new part, spools file parts through the
+ * stages of the {@link UploadPipeline} and keeps the parts held in memory within the
+ * {@link UploadMemoryBudget}.
+ */
+class UploadFileItemFactory extends DiskFileItemFactory
+{
+	private final String uploadId;
+
+	private final UploadTracer tracer;
+
+	private final UploadPipeline pipeline;
+
+	private final UploadMemoryBudget budget;
+
+	private final List<PartTee> tees = new ArrayList<>();
+
+	private final List<SpoolItem> items = new ArrayList<>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param repository
+	 *            where items larger than the threshold are spooled
+	 * @param uploadId
+	 *            the ID of the upload
+	 * @param tracer
+	 *            the tracer of the request
+	 * @param pipeline
+	 *            the stages to stream file parts through
+	 */
+	UploadFileItemFactory(File repository, String uploadId, UploadTracer tracer, UploadPipeline pipeline)
+	{
+		this(repository, uploadId, tracer, pipeline, UploadMemoryBudget.get());
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param repository
+	 *            where items larger than the threshold are spooled
+	 * @param uploadId
+	 *            the ID of the upload
+	 * @param tracer
+	 *            the tracer of the request
+	 * @param pipeline
+	 *            the stages to stream file parts through
+	 * @param budget
+	 *            the memory the items below the threshold are kept in
+	 */
+	UploadFileItemFactory(File repository, String uploadId, UploadTracer tracer, UploadPipeline pipeline,
+		UploadMemoryBudget budget)
+	{
+		this.uploadId = uploadId;
+		this.tracer = tracer;
+		this.pipeline = pipeline;
+		this.budget = budget;
+		setRepository(repository);
+	}
+
+	@Override
+	public FileItem createItem(String fieldName, String contentType, boolean isFormField, String fileName)
+	{
+		// the parser is done with the previous item
+		if (!items.isEmpty())
+		{
+			settle(items.get(items.size() - 1));
+		}
+		int threshold = getSizeThreshold();
+		UploadMemoryBudget.Reservation reservation = budget.tryReserve(threshold);
+		if (reservation == null)
+		{
+			// over budget: straight to disk
+			threshold = 0;
+		}
+		SpoolItem item = new SpoolItem(fieldName, contentType, isFormField, fileName,
+			threshold, getRepository());
+		item.reservation = reservation;
+		items.add(item);
+		item.setDefaultCharset(getDefaultCharset());
+		tracer.partStarted(item);
+		item.tee = pipeline.open(uploadId, item);
+		if (item.tee != null)
+		{
+			tees.add(item.tee);
+		}
+		return item;
+	}
+
+	/**
+	 * @param index
+	 *            the number of an item, from 1
+	 * @return the client file name, or the field name, of the item, {@code null} if it is not
+	 *         created yet
+	 */
+	String getItemName(int index)
+	{
+		if (index < 1 || index > items.size())
+		{
+			return null;
+		}
+		SpoolItem item = items.get(index - 1);
+		return item.getName() != null ? item.getName() : item.getFieldName();
+	}
+
+	/**
+	 * @param item
+	 *            an item created by this factory
+	 * @return the tee the item was spooled through, or {@code null}
+	 */
+	PartTee getTee(FileItem item)
+	{
+		return item instanceof SpoolItem ? ((SpoolItem)item).tee : null;
+	}
+
+	/**
+	 * Takes over the memory reservation of a complete item, shrunk to what the item holds.
+	 *
+	 * @param item
+	 *            an item created by this factory
+	 * @return the reservation, to be released with the item, or {@code null}
+	 */
+	UploadMemoryBudget.Reservation claimReservation(FileItem item)
+	{
+		if (!(item instanceof SpoolItem))
+		{
+			return null;
+		}
+		SpoolItem spoolItem = (SpoolItem)item;
+		settle(spoolItem);
+		UploadMemoryBudget.Reservation reservation = spoolItem.reservation;
+		spoolItem.reservation = null;
+		return reservation;
+	}
+
+	/**
+	 * Aborts the stages of the parts that were not completely spooled, e.g. because the upload
+	 * failed, and releases the memory of the items nobody claimed.
+	 */
+	void abort()
+	{
+		for (PartTee tee : tees)
+		{
+			tee.abort();
+		}
+		for (SpoolItem item : items)
+		{
+			if (item.reservation != null)
+			{
+				item.reservation.release();
+				item.reservation = null;
+			}
+		}
+	}
+
+	private static void settle(SpoolItem item)
+	{
+		if (item.reservation != null && item.opened)
+		{
+			// nothing is left in memory once the item went to disk
+			item.reservation.shrink(item.isInMemory() ? item.getSize() : 0);
+		}
+	}
+
+	private static final class SpoolItem extends DiskFileItem
+	{
+		private PartTee tee;
+
+		private UploadMemoryBudget.Reservation reservation;
+
+		/** whether the parser started writing, before that the item has no size */
+		private boolean opened;
+
+		private SpoolItem(String fieldName, String contentType, boolean isFormField, String fileName,
+			int sizeThreshold, File repository)
+		{
+			super(fieldName, contentType, isFormField, fileName, sizeThreshold, repository);
+		}
+
+		@Override
+		public OutputStream getOutputStream()
+		{
+			OutputStream out = super.getOutputStream();
+			opened = true;
+			if (tee == null)
+			{
+				return out;
+			}
+			if (tee.isConsuming())
+			{
+				// only the stages see the bytes, the item stays empty and in memory
+				out = new FilterOutputStream(out)
+				{
+					@Override
+					public void write(int b)
+					{
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len)
+					{
+					}
+				};
+			}
+			return tee.wrap(out);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.mycompany;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Caps the bytes of file parts held in memory by all the uploads in flight. The size threshold
+ * of the item factory only caps a single part, so a burst of uploads with many medium-sized parts
+ * could otherwise fill the heap.
+ * <p>
+ * A part reserves its whole threshold before it is parsed. When the budget cannot cover that, the
+ * part is spilled to disk from its first byte instead of waiting for the budget, so an upload
+ * never blocks on memory. Once the part is complete its reservation shrinks to what it really
+ * holds, nothing if it went to disk, and the rest is released with the part. The accounting is a
+ * single compare-and-set on an {@link AtomicLong}.
+ */
+public class UploadMemoryBudget
+{
+	private static final MetaDataKey<UploadMemoryBudget> KEY = new MetaDataKey<>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** used when no application is bound to the current thread or it did not install any */
+	private static final UploadMemoryBudget DETACHED = new UploadMemoryBudget(
+		defaultLimit(), UploadMetrics.get());
+
+	private final long limit;
+
+	private final UploadMetrics metrics;
+
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param limit
+	 *            the most bytes of parts held in memory at any time
+	 * @param metrics
+	 *            the metrics to report the use of the budget to
+	 */
+	public UploadMemoryBudget(long limit, UploadMetrics metrics)
+	{
+		this.limit = Args.withinRange(0L, Long.MAX_VALUE, limit, "limit");
+		this.metrics = Args.notNull(metrics, "metrics");
+	}
+
+	/**
+	 * Creates the budget of the application.
+	 *
+	 * @param application
+	 *            the application
+	 * @param limit
+	 *            the most bytes of parts held in memory at any time
+	 * @param metrics
+	 *            the metrics of the application
+	 * @return the installed budget
+	 */
+	public static UploadMemoryBudget install(Application application, long limit, UploadMetrics metrics)
+	{
+		UploadMemoryBudget budget = new UploadMemoryBudget(limit, metrics);
+		application.setMetaData(KEY, budget);
+		return budget;
+	}
+
+	/**
+	 * @return the budget of the current application, or one of {@link #defaultLimit()}
+	 */
+	public static UploadMemoryBudget get()
+	{
+		if (Application.exists())
+		{
+			UploadMemoryBudget budget = Application.get().getMetaData(KEY);
+			if (budget != null)
+			{
+				return budget;
+			}
+		}
+		return DETACHED;
+	}
+
+	/**
+	 * @return a sixteenth of the maximum heap
+	 */
+	public static long defaultLimit()
+	{
+		return Runtime.getRuntime().maxMemory() / 16;
+	}
+
+	/**
+	 * @return the most bytes of parts held in memory at any time
+	 */
+	public long getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * @return the bytes currently reserved
+	 */
+	public long getUsed()
+	{
+		return used.get();
+	}
+
+	/**
+	 * Reserves memory for a part, unless that would exceed the budget.
+	 *
+	 * @param bytes
+	 *            the most bytes the part may hold in memory
+	 * @return the reservation, or {@code null} if the part must go to disk
+	 */
+	public Reservation tryReserve(long bytes)
+	{
+		Args.isTrue(bytes >= 0, "bytes must not be negative");
+		long current;
+		do
+		{
+			current = used.get();
+			if (bytes > limit - current)
+			{
+				metrics.earlySpill();
+				return null;
+			}
+		}
+		while (!used.compareAndSet(current, current + bytes));
+		metrics.bufferedBytes(bytes);
+		return new Reservation(this, bytes);
+	}
+
+	private void giveBack(long bytes)
+	{
+		used.addAndGet(-bytes);
+		metrics.bufferedBytes(-bytes);
+	}
+
+	/**
+	 * Memory reserved for a part. Safe to shrink and release from any thread, any number of times.
+	 */
+	public static final class Reservation
+	{
+		private final UploadMemoryBudget budget;
+
+		private final AtomicLong bytes;
+
+		private Reservation(UploadMemoryBudget budget, long bytes)
+		{
+			this.budget = budget;
+			this.bytes = new AtomicLong(bytes);
+		}
+
+		/**
+		 * @return the bytes still reserved
+		 */
+		public long getBytes()
+		{
+			return bytes.get();
+		}
+
+		/**
+		 * Gives back what the part does not need, e.g. once it is complete.
+		 *
+		 * @param needed
+		 *            the bytes the part holds in memory; a reservation never grows
+		 */
+		public void shrink(long needed)
+		{
+			long current;
+			do
+			{
+				current = bytes.get();
+				if (current <= needed)
+				{
+					return;
+				}
+			}
+			while (!bytes.compareAndSet(current, needed));
+			budget.giveBack(current - needed);
+		}
+
+		/**
+		 * Gives back the whole reservation.
+		 */
+		public void release()
+		{
+			shrink(0);
+		}
+	}
+}
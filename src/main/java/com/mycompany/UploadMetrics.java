@@ -0,0 +1,445 @@
+package com.mycompany;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.WicketRuntimeException;
+
+/**
+ * Upload telemetry, published on the platform MBean server under the {@code com.mycompany}
+ * domain. All counters are {@link LongAdder}s so that the request threads updating them never
+ * contend with each other.
+ * <p>
+ * Histograms:
+ * <ul>
+ * <li>{@code parseMicros}: the whole {@code parseFileParts()} call, successful ones only</li>
+ * <li>{@code spoolMicros}: reading the multipart body and spooling the items</li>
+ * <li>{@code saveMicros}: {@code IUploadsFileManager.save}</li>
+ * <li>{@code writeBehindMicros}: from a save being queued until the file is durable</li>
+ * <li>{@code smallWriteBehindMicros}: the same for the files below the threshold of the lane for
+ * large files only</li>
+ * <li>{@code partsPerRequest}: number of items in each multipart request</li>
+ * <li>{@code partBytesPerSecond}: the transfer rate of each part while its request was read, when
+ * progress updates are enabled</li>
+ * </ul>
+ */
+public class UploadMetrics implements UploadMetricsMBean
+{
+	private static final MetaDataKey<UploadMetrics> KEY = new MetaDataKey<>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** used when no application is bound to the current thread, e.g. in unit tests */
+	private static final UploadMetrics DETACHED = new UploadMetrics();
+
+	private static final String DOMAIN = "com.mycompany";
+
+	private final LongAdder activeUploads = new LongAdder();
+	private final LongAdder uploads = new LongAdder();
+	private final LongAdder adoptedUploads = new LongAdder();
+	private final LongAdder bytesIngested = new LongAdder();
+	private final LongAdder parts = new LongAdder();
+	private final LongAdder tempRepositoryBytes = new LongAdder();
+	private final LongAdder bufferedBytes = new LongAdder();
+	private final LongAdder earlySpills = new LongAdder();
+	private final LongAdder rejectedUploads = new LongAdder();
+	private final LongAdder abortedUploads = new LongAdder();
+	private final LongAdder vetoedParts = new LongAdder();
+	private final LongAdder extractedEntries = new LongAdder();
+	private final LongAdder sweptSpoolFiles = new LongAdder();
+	private final LongAdder writeBehindQueueDepth = new LongAdder();
+
+	private final StripedHistogram parseMicros = new StripedHistogram();
+	private final StripedHistogram spoolMicros = new StripedHistogram();
+	private final StripedHistogram saveMicros = new StripedHistogram();
+	private final StripedHistogram writeBehindMicros = new StripedHistogram();
+	private final StripedHistogram smallWriteBehindMicros = new StripedHistogram();
+	private final StripedHistogram partsPerRequest = new StripedHistogram();
+	private final StripedHistogram partBytesPerSecond = new StripedHistogram();
+
+	/**
+	 * Creates the metrics of the application, registers their MBeans and unregisters them when
+	 * the application is destroyed.
+	 *
+	 * @param application
+	 *            the application
+	 * @return the installed metrics
+	 */
+	public static UploadMetrics install(Application application)
+	{
+		UploadMetrics metrics = new UploadMetrics();
+		String base = DOMAIN + ":type=UploadMetrics,application=" +
+			ObjectName.quote(application.getName());
+		Map<ObjectName, Object> beans = new LinkedHashMap<>();
+		try
+		{
+			beans.put(new ObjectName(base), metrics);
+			for (Map.Entry<String, StripedHistogram> histogram : metrics.getHistograms().entrySet())
+			{
+				beans.put(new ObjectName(base + ",name=" + histogram.getKey()), histogram.getValue());
+			}
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (Map.Entry<ObjectName, Object> bean : beans.entrySet())
+			{
+				if (server.isRegistered(bean.getKey()))
+				{
+					server.unregisterMBean(bean.getKey());
+				}
+				server.registerMBean(bean.getValue(), bean.getKey());
+			}
+		}
+		catch (JMException e)
+		{
+			throw new WicketRuntimeException("Could not register the upload metrics", e);
+		}
+
+		application.setMetaData(KEY, metrics);
+		application.getApplicationListeners().add(new IApplicationListener()
+		{
+			@Override
+			public void onBeforeDestroyed(Application application)
+			{
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				for (ObjectName name : beans.keySet())
+				{
+					try
+					{
+						if (server.isRegistered(name))
+						{
+							server.unregisterMBean(name);
+						}
+					}
+					catch (JMException e)
+					{
+						// the server is going away anyway
+					}
+				}
+			}
+		});
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics of the current application, or a detached instance if there is no
+	 *         application or it did not install any
+	 */
+	public static UploadMetrics get()
+	{
+		if (Application.exists())
+		{
+			UploadMetrics metrics = Application.get().getMetaData(KEY);
+			if (metrics != null)
+			{
+				return metrics;
+			}
+		}
+		return DETACHED;
+	}
+
+	/**
+	 * @return the histograms, by JMX name
+	 */
+	public Map<String, StripedHistogram> getHistograms()
+	{
+		Map<String, StripedHistogram> histograms = new LinkedHashMap<>();
+		histograms.put("parseMicros", parseMicros);
+		histograms.put("spoolMicros", spoolMicros);
+		histograms.put("saveMicros", saveMicros);
+		histograms.put("writeBehindMicros", writeBehindMicros);
+		histograms.put("smallWriteBehindMicros", smallWriteBehindMicros);
+		histograms.put("partsPerRequest", partsPerRequest);
+		histograms.put("partBytesPerSecond", partBytesPerSecond);
+		return histograms;
+	}
+
+	/**
+	 * Called when a multipart request starts being parsed.
+	 */
+	public void uploadStarted()
+	{
+		activeUploads.increment();
+		uploads.increment();
+	}
+
+	/**
+	 * Called when a multipart request is no longer being parsed, successfully or not.
+	 */
+	public void uploadFinished()
+	{
+		activeUploads.decrement();
+	}
+
+	/**
+	 * Called when a multipart request has been parsed successfully.
+	 *
+	 * @param startNanos
+	 *            when parsing started
+	 */
+	public void parsed(long startNanos)
+	{
+		parseMicros.recordSince(startNanos);
+	}
+
+	/**
+	 * @param bytes
+	 *            number of request body bytes just read
+	 */
+	public void bytesIngested(long bytes)
+	{
+		bytesIngested.add(bytes);
+	}
+
+	/**
+	 * @param startNanos
+	 *            when spooling started
+	 * @param partCount
+	 *            the number of parts spooled
+	 */
+	public void spooled(long startNanos, int partCount)
+	{
+		spoolMicros.recordSince(startNanos);
+		parts.add(partCount);
+		partsPerRequest.record(partCount);
+	}
+
+	/**
+	 * Called when the parts parsed by the container are adopted instead of parsing the request.
+	 *
+	 * @param partCount
+	 *            the number of adopted parts
+	 */
+	public void adopted(int partCount)
+	{
+		adoptedUploads.increment();
+		parts.add(partCount);
+		partsPerRequest.record(partCount);
+	}
+
+	/**
+	 * @param startNanos
+	 *            when saving started
+	 */
+	public void saved(long startNanos)
+	{
+		saveMicros.recordSince(startNanos);
+	}
+
+	/**
+	 * @param delta
+	 *            writes added to (positive) or taken from (negative) the write-behind queue
+	 */
+	public void writeBehindQueued(int delta)
+	{
+		writeBehindQueueDepth.add(delta);
+	}
+
+	/**
+	 * @param submittedNanos
+	 *            when the write was queued
+	 * @param small
+	 *            whether the file was written in the lane for small files
+	 */
+	public void writtenBehind(long submittedNanos, boolean small)
+	{
+		writeBehindMicros.recordSince(submittedNanos);
+		if (small)
+		{
+			smallWriteBehindMicros.recordSince(submittedNanos);
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            the bytes of a part read from the request
+	 * @param nanos
+	 *            how long they took to arrive
+	 */
+	public void partTransferred(long bytes, long nanos)
+	{
+		if (bytes > 0 && nanos > 0)
+		{
+			partBytesPerSecond.record((long)(bytes * 1e9 / nanos));
+		}
+	}
+
+	/**
+	 * @param delta
+	 *            bytes added to (positive) or removed from (negative) the temp repository
+	 */
+	public void tempRepositoryBytes(long delta)
+	{
+		tempRepositoryBytes.add(delta);
+	}
+
+	/**
+	 * @param delta
+	 *            bytes reserved from (positive) or given back to (negative) the
+	 *            {@link UploadMemoryBudget}
+	 */
+	public void bufferedBytes(long delta)
+	{
+		bufferedBytes.add(delta);
+	}
+
+	/**
+	 * Called when a part goes to disk from its first byte because the {@link UploadMemoryBudget}
+	 * is used up.
+	 */
+	public void earlySpill()
+	{
+		earlySpills.increment();
+	}
+
+	/**
+	 * Called when an upload exceeds a size or count limit.
+	 */
+	public void uploadRejected()
+	{
+		rejectedUploads.increment();
+	}
+
+	/**
+	 * Called when an upload fails for any reason other than a limit.
+	 */
+	public void uploadAborted()
+	{
+		abortedUploads.increment();
+	}
+
+	/**
+	 * Called when a part is dropped because an {@link UploadStage} vetoed it.
+	 */
+	public void partVetoed()
+	{
+		vetoedParts.increment();
+	}
+
+	/**
+	 * @param entries
+	 *            the number of entries stored from an uploaded archive
+	 */
+	public void entriesExtracted(int entries)
+	{
+		extractedEntries.add(entries);
+	}
+
+	/**
+	 * @param files
+	 *            the number of orphaned spool files deleted by an {@link UploadSpool} sweep
+	 */
+	public void spoolFilesSwept(int files)
+	{
+		sweptSpoolFiles.add(files);
+	}
+
+	@Override
+	public long getActiveUploads()
+	{
+		return activeUploads.sum();
+	}
+
+	@Override
+	public long getUploads()
+	{
+		return uploads.sum();
+	}
+
+	@Override
+	public long getAdoptedUploads()
+	{
+		return adoptedUploads.sum();
+	}
+
+	@Override
+	public long getBytesIngested()
+	{
+		return bytesIngested.sum();
+	}
+
+	@Override
+	public long getParts()
+	{
+		return parts.sum();
+	}
+
+	@Override
+	public long getTempRepositoryBytes()
+	{
+		return tempRepositoryBytes.sum();
+	}
+
+	@Override
+	public long getBufferedBytes()
+	{
+		return bufferedBytes.sum();
+	}
+
+	@Override
+	public long getEarlySpills()
+	{
+		return earlySpills.sum();
+	}
+
+	@Override
+	public long getWriteBehindQueueDepth()
+	{
+		return writeBehindQueueDepth.sum();
+	}
+
+	@Override
+	public long getRejectedUploads()
+	{
+		return rejectedUploads.sum();
+	}
+
+	@Override
+	public long getAbortedUploads()
+	{
+		return abortedUploads.sum();
+	}
+
+	@Override
+	public long getVetoedParts()
+	{
+		return vetoedParts.sum();
+	}
+
+	@Override
+	public long getExtractedEntries()
+	{
+		return extractedEntries.sum();
+	}
+
+	@Override
+	public long getSweptSpoolFiles()
+	{
+		return sweptSpoolFiles.sum();
+	}
+
+	@Override
+	public void reset()
+	{
+		uploads.reset();
+		adoptedUploads.reset();
+		bytesIngested.reset();
+		parts.reset();
+		rejectedUploads.reset();
+		abortedUploads.reset();
+		vetoedParts.reset();
+		extractedEntries.reset();
+		sweptSpoolFiles.reset();
+		earlySpills.reset();
+		for (StripedHistogram histogram : getHistograms().values())
+		{
+			histogram.reset();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.mycompany;
+
+/**
+ * JMX view of the upload counters. Latency and size distributions are published as separate
+ * {@link StripedHistogramMBean}s.
+ */
+public interface UploadMetricsMBean
+{
+	/**
+	 * @return the number of multipart requests being parsed right now
+	 */
+	long getActiveUploads();
+
+	/**
+	 * @return the total number of multipart requests parsed
+	 */
+	long getUploads();
+
+	/**
+	 * @return the number of multipart requests the container had already parsed, whose parts were
+	 *         adopted as they were
+	 */
+	long getAdoptedUploads();
+
+	/**
+	 * @return the total number of request body bytes read by the multipart parser; the ingestion
+	 *         rate is the difference between two readings divided by the time between them, which
+	 *         each monitoring client works out on its own schedule
+	 */
+	long getBytesIngested();
+
+	/**
+	 * @return the total number of parts (files and form fields) parsed
+	 */
+	long getParts();
+
+	/**
+	 * @return the bytes currently held by spooled upload files in the temp repository
+	 */
+	long getTempRepositoryBytes();
+
+	/**
+	 * @return the bytes of parts held in memory, as reserved from the memory budget
+	 */
+	long getBufferedBytes();
+
+	/**
+	 * @return the number of parts spooled to disk from their first byte because the memory budget
+	 *         was used up
+	 */
+	long getEarlySpills();
+
+	/**
+	 * @return the number of saved uploads waiting to be made durable
+	 */
+	long getWriteBehindQueueDepth();
+
+	/**
+	 * @return the number of uploads rejected because of a size or count limit
+	 */
+	long getRejectedUploads();
+
+	/**
+	 * @return the number of uploads that failed for any other reason, e.g. a client disconnect
+	 */
+	long getAbortedUploads();
+
+	/**
+	 * @return the number of parts dropped because an upload stage vetoed them
+	 */
+	long getVetoedParts();
+
+	/**
+	 * @return the number of entries stored from uploaded archives
+	 */
+	long getExtractedEntries();
+
+	/**
+	 * @return the number of spool files left behind, e.g. by a crash, and deleted by a sweep
+	 */
+	long getSweptSpoolFiles();
+
+	/**
+	 * Resets all counters and histograms except the gauges.
+	 */
+	void reset();
+}
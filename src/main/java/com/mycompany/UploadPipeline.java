@@ -0,0 +1,211 @@
+package com.mycompany;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * The {@link UploadStage}s file parts are streamed through while
+ * {@link TomcatMultipartServletWebRequestImpl} spools them.
+ * <p>
+ * The bytes are copied once, from the parser's buffer into a chunk, and every stage gets a
+ * read-only view of the same chunk. Each stage consumes its chunks on its own thread; when one
+ * lags more than {@code maxLagChunks} behind the parser, the parser waits for it, so a slow stage
+ * costs throughput but never unbounded memory. The results of the stages are attached to the
+ * parts by the time {@code parseFileParts()} returns, and parts vetoed by a stage are dropped.
+ * <p>
+ * A stage that hangs must not hold the request forever: once a part is spooled the parser waits
+ * for each stage at most for its {@link UploadStage#getTimeout() timeout}, by default the one of
+ * the pipeline, then aborts it and records a {@link java.util.concurrent.TimeoutException} as its
+ * result, or drops the part if {@link #setVetoOnTimeout(boolean)} says so.
+ */
+public class UploadPipeline
+{
+	private static final MetaDataKey<UploadPipeline> KEY = new MetaDataKey<>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** used when no application is bound to the current thread or it did not install any */
+	private static final UploadPipeline EMPTY = new UploadPipeline(1, 1);
+
+	private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+	private final List<UploadStage> stages = new CopyOnWriteArrayList<>();
+
+	private final int chunkSize;
+
+	private final int maxLagChunks;
+
+	private volatile Duration stageTimeout = Duration.ofMinutes(1);
+
+	private volatile boolean vetoOnTimeout;
+
+	private volatile ExecutorService executor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param chunkSize
+	 *            the size of the chunks handed to the stages
+	 * @param maxLagChunks
+	 *            how many chunks a stage may lag behind the parser
+	 */
+	public UploadPipeline(int chunkSize, int maxLagChunks)
+	{
+		this.chunkSize = Args.withinRange(1, Integer.MAX_VALUE, chunkSize, "chunkSize");
+		this.maxLagChunks = Args.withinRange(1, Integer.MAX_VALUE, maxLagChunks, "maxLagChunks");
+	}
+
+	/**
+	 * Creates the pipeline of the application, with 64KiB chunks and a lag of 16 chunks, and
+	 * stops its threads when the application is destroyed.
+	 *
+	 * @param application
+	 *            the application
+	 * @return the installed pipeline, without stages
+	 */
+	public static UploadPipeline install(Application application)
+	{
+		UploadPipeline pipeline = new UploadPipeline(64 * 1024, 16);
+		application.setMetaData(KEY, pipeline);
+		application.getApplicationListeners().add(new IApplicationListener()
+		{
+			@Override
+			public void onBeforeDestroyed(Application application)
+			{
+				pipeline.close();
+			}
+		});
+		return pipeline;
+	}
+
+	/**
+	 * @return the pipeline of the current application, or an empty one
+	 */
+	public static UploadPipeline get()
+	{
+		if (Application.exists())
+		{
+			UploadPipeline pipeline = Application.get().getMetaData(KEY);
+			if (pipeline != null)
+			{
+				return pipeline;
+			}
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * @param stage
+	 *            the stage to stream the file parts through
+	 * @return this
+	 */
+	public UploadPipeline add(UploadStage stage)
+	{
+		Args.notNull(stage, "stage");
+		if (this == EMPTY)
+		{
+			throw new IllegalStateException("Install a pipeline to add stages to");
+		}
+		stages.add(stage);
+		return this;
+	}
+
+	/**
+	 * @param stageTimeout
+	 *            how long the parser waits for the stages without a timeout of their own once a
+	 *            part is spooled, one minute by default
+	 * @return this
+	 */
+	public UploadPipeline setStageTimeout(Duration stageTimeout)
+	{
+		this.stageTimeout = Args.notNull(stageTimeout, "stageTimeout");
+		return this;
+	}
+
+	/**
+	 * @param vetoOnTimeout
+	 *            whether a part is dropped when a stage does not finish within its timeout, by
+	 *            default it is kept and the stage has a {@code TimeoutException} as result
+	 * @return this
+	 */
+	public UploadPipeline setVetoOnTimeout(boolean vetoOnTimeout)
+	{
+		this.vetoOnTimeout = vetoOnTimeout;
+		return this;
+	}
+
+	/**
+	 * Stops the threads of the stages. Parts spooled afterwards are not processed.
+	 */
+	public synchronized void close()
+	{
+		if (executor != null)
+		{
+			executor.shutdown();
+			executor = null;
+		}
+		stages.clear();
+	}
+
+	/**
+	 * Opens the sinks of the stages interested in a file part.
+	 *
+	 * @param uploadId
+	 *            the ID of the upload
+	 * @param item
+	 *            the item just created by the parser
+	 * @return the tee to spool the item through, or {@code null} if no stage is interested
+	 */
+	PartTee open(String uploadId, FileItem item)
+	{
+		if (stages.isEmpty() || item.isFormField())
+		{
+			return null;
+		}
+		List<String> names = new ArrayList<>();
+		List<UploadStage.Sink> sinks = new ArrayList<>();
+		List<Duration> timeouts = new ArrayList<>();
+		for (UploadStage stage : stages)
+		{
+			UploadStage.Sink sink = stage.open(uploadId, item.getFieldName(), item.getName(),
+				item.getContentType());
+			if (sink != null)
+			{
+				names.add(stage.getName());
+				sinks.add(sink);
+				Duration timeout = stage.getTimeout();
+				timeouts.add(timeout != null ? timeout : stageTimeout);
+			}
+		}
+		return sinks.isEmpty() ? null : new PartTee(names, sinks, timeouts, chunkSize, maxLagChunks,
+			vetoOnTimeout, getExecutor());
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			// unbounded on purpose, a stage waiting for a thread would stall the parser forever
+			int pool = POOL_COUNTER.incrementAndGet();
+			AtomicInteger threadCounter = new AtomicInteger();
+			executor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable,
+					"upload-stage-" + pool + "-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+}
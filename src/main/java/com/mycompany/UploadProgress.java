@@ -0,0 +1,244 @@
+package com.mycompany;
+
+import org.apache.wicket.Session;
+import org.apache.wicket.protocol.http.servlet.UploadInfo;
+import org.apache.wicket.util.lang.Bytes;
+
+/**
+ * The progress of an upload, part by part. On top of what {@link UploadInfo} tells it knows
+ * which part is in flight and how much of it has arrived, its totals are not limited to 2GiB, and
+ * its transfer rate is an exponential moving average of the recent rate instead of the average
+ * since the start, so the remaining time follows a connection that slows down or speeds up. It
+ * keeps no history: the memory per upload is constant however many parts it has.
+ * <p>
+ * The size of a part is only known once it is complete, so the remaining time is the one of the
+ * whole upload. The default status message of
+ * {@link org.apache.wicket.extensions.ajax.markup.html.form.upload.UploadProgressBar} shows the
+ * smoothed rate and remaining time; {@code ${currentItem}}, {@code ${currentName}} and
+ * {@code ${currentItemBytesString}} can be added to its {@code UploadStatusResource.status}
+ * message, {@link WicketApplication} has every upload parsed by
+ * {@link TomcatMultipartServletWebRequestImpl}.
+ * <p>
+ * The progress is stored in the session and survives its serialization. The fields of
+ * {@link UploadInfo} are all transient, so the bytes uploaded and the start time are kept here
+ * instead; only the metrics are left behind.
+ */
+public class UploadProgress extends UploadInfo
+{
+	private static final long serialVersionUID = 1L;
+
+	/** the rate is sampled at most this often */
+	private static final long SAMPLE_NANOS = 250_000_000L;
+
+	/** the time constant of the moving average: older samples weigh 1/e less every 2 seconds */
+	private static final double TAU_NANOS = 2_000_000_000.0;
+
+	private final long totalBytes;
+
+	/** {@link UploadInfo} keeps its state in transient fields, so it is tracked here instead */
+	private final long timeStarted = System.currentTimeMillis();
+
+	private volatile long bytesUploaded;
+
+	private final transient UploadMetrics metrics;
+
+	private volatile int currentItem;
+
+	private volatile String currentName;
+
+	private volatile long currentItemStartBytes;
+
+	private long currentItemStartNanos;
+
+	private long lastSampleNanos;
+
+	private long lastSampleBytes;
+
+	/** bytes per second, negative until the first sample */
+	private volatile double rate = -1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param totalBytes
+	 *            the size of the request, 0 if unknown
+	 * @param metrics
+	 *            the metrics to report the transfer rate of each part to
+	 */
+	public UploadProgress(long totalBytes, UploadMetrics metrics)
+	{
+		this(totalBytes, metrics, System.nanoTime());
+	}
+
+	UploadProgress(long totalBytes, UploadMetrics metrics, long nowNanos)
+	{
+		super((int)Math.min(Math.max(totalBytes, 0), Integer.MAX_VALUE));
+		this.totalBytes = Math.max(totalBytes, 0);
+		this.metrics = metrics;
+		lastSampleNanos = nowNanos;
+		currentItemStartNanos = nowNanos;
+	}
+
+	/**
+	 * Called by the parser as the request is read.
+	 *
+	 * @param bytesUploaded
+	 *            the bytes of the request read so far
+	 * @param item
+	 *            the number of the part being read, from 1, 0 before the first one
+	 * @param name
+	 *            the client file name, or field name, of that part, {@code null} if not known yet
+	 */
+	public void update(long bytesUploaded, int item, String name)
+	{
+		update(bytesUploaded, item, name, System.nanoTime());
+	}
+
+	void update(long bytesUploaded, int item, String name, long now)
+	{
+		if (item != currentItem)
+		{
+			partCompleted(bytesUploaded, now);
+			currentItem = item;
+			currentItemStartBytes = bytesUploaded;
+			currentItemStartNanos = now;
+			currentName = name;
+		}
+		else if (currentName == null)
+		{
+			currentName = name;
+		}
+		setBytesUploaded(bytesUploaded);
+
+		long elapsed = now - lastSampleNanos;
+		if (elapsed >= SAMPLE_NANOS)
+		{
+			double sample = (bytesUploaded - lastSampleBytes) * 1e9 / elapsed;
+			double current = rate;
+			rate = current < 0 ? sample : current + (1 - Math.exp(-elapsed / TAU_NANOS)) * (sample - current);
+			lastSampleNanos = now;
+			lastSampleBytes = bytesUploaded;
+		}
+	}
+
+	/**
+	 * Called when the whole request has been read, reports the last part.
+	 */
+	public void completed()
+	{
+		partCompleted(getBytesUploaded(), System.nanoTime());
+		currentItem = 0;
+	}
+
+	private void partCompleted(long bytesUploaded, long now)
+	{
+		if (currentItem > 0 && metrics != null)
+		{
+			metrics.partTransferred(bytesUploaded - currentItemStartBytes, now - currentItemStartNanos);
+		}
+	}
+
+	/**
+	 * @return the number of the part being read, from 1, 0 before the first one and once complete
+	 */
+	public int getCurrentItem()
+	{
+		return currentItem;
+	}
+
+	/**
+	 * @return the client file name, or field name, of the part being read, or an empty string
+	 */
+	public String getCurrentName()
+	{
+		String name = currentName;
+		return name != null ? name : "";
+	}
+
+	/**
+	 * @return the bytes of the part being read received so far, including its headers
+	 */
+	public long getCurrentItemBytes()
+	{
+		return currentItem > 0 ? getBytesUploaded() - currentItemStartBytes : 0;
+	}
+
+	/**
+	 * @return {@link #getCurrentItemBytes()} formatted for the locale of the session
+	 */
+	public String getCurrentItemBytesString()
+	{
+		return Bytes.bytes(getCurrentItemBytes()).toString(Session.get().getLocale());
+	}
+
+	@Override
+	public long getBytesUploaded()
+	{
+		return bytesUploaded;
+	}
+
+	@Override
+	public void setBytesUploaded(long bytesUploaded)
+	{
+		this.bytesUploaded = bytesUploaded;
+	}
+
+	@Override
+	public String getBytesUploadedString()
+	{
+		return Bytes.bytes(bytesUploaded).toString(Session.get().getLocale());
+	}
+
+	@Override
+	public long getElapsedMilliseconds()
+	{
+		return System.currentTimeMillis() - timeStarted;
+	}
+
+	@Override
+	public long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+	@Override
+	public String getTotalBytesString()
+	{
+		return Bytes.bytes(totalBytes).toString(Session.get().getLocale());
+	}
+
+	@Override
+	public int getPercentageComplete()
+	{
+		if (totalBytes == 0)
+		{
+			return 100;
+		}
+		return (int)Math.min(100, getBytesUploaded() * 100 / totalBytes);
+	}
+
+	/**
+	 * @return the smoothed transfer rate, the average since the start until there is a sample
+	 */
+	@Override
+	public long getTransferRateBPS()
+	{
+		double current = rate;
+		return current < 0 ? bytesUploaded / Math.max(getElapsedSeconds(), 1) : (long)current;
+	}
+
+	/**
+	 * @return the time left at the smoothed transfer rate, 0 if the size of the request or the
+	 *         rate is unknown
+	 */
+	@Override
+	public long getRemainingMilliseconds()
+	{
+		long rateBps = getTransferRateBPS();
+		if (totalBytes == 0 || rateBps <= 0)
+		{
+			return 0;
+		}
+		return Math.max(0, totalBytes - getBytesUploaded()) * 1000 / rateBps;
+	}
+}
@@ -0,0 +1,136 @@
+package com.mycompany;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.wicket.protocol.http.servlet.UploadInfo;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * The progress of the uploads to a {@link StatelessUploadResource}, by upload ID, kept in the
+ * application instead of the session. Completed uploads are remembered for a while so that a
+ * last poll can tell they are done, and so that their ID cannot be claimed again; stale entries
+ * are purged as new uploads start.
+ */
+public class UploadProgressRegistry
+{
+	/** purge stale entries every this many started uploads */
+	private static final int PURGE_INTERVAL = 64;
+
+	private final Map<String, Progress> uploads = new ConcurrentHashMap<>();
+
+	private final long retentionMillis;
+
+	private final AtomicInteger startsSincePurge = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param retention
+	 *            how long an upload is remembered after its last update
+	 */
+	public UploadProgressRegistry(Duration retention)
+	{
+		this.retentionMillis = Args.notNull(retention, "retention").toMillis();
+	}
+
+	/**
+	 * @param uploadId
+	 *            the upload ID
+	 * @return the progress of the upload, or {@code null} if it is unknown
+	 */
+	public UploadInfo get(String uploadId)
+	{
+		Progress progress = uploads.get(uploadId);
+		return progress != null ? progress.info : null;
+	}
+
+	/**
+	 * @param uploadId
+	 *            the upload ID
+	 * @return true if the upload is known and no longer running
+	 */
+	public boolean isCompleted(String uploadId)
+	{
+		Progress progress = uploads.get(uploadId);
+		return progress != null && progress.completed;
+	}
+
+	/**
+	 * @return the number of uploads remembered
+	 */
+	public int size()
+	{
+		return uploads.size();
+	}
+
+	/**
+	 * Registers a new upload, unless one with the same ID is still remembered.
+	 *
+	 * @return false if the ID is in use, e.g. because its token is replayed
+	 */
+	boolean claim(String uploadId, long totalBytes)
+	{
+		Progress progress = new Progress(new UploadProgress(totalBytes, UploadMetrics.get()), retentionMillis);
+		if (uploads.putIfAbsent(uploadId, progress) != null)
+		{
+			return false;
+		}
+		if (startsSincePurge.incrementAndGet() >= PURGE_INTERVAL)
+		{
+			startsSincePurge.set(0);
+			purge();
+		}
+		return true;
+	}
+
+	void store(String uploadId, UploadInfo info)
+	{
+		Progress progress = uploads.get(uploadId);
+		if (progress == null || progress.info != info)
+		{
+			uploads.put(uploadId, new Progress(info, retentionMillis));
+		}
+		else
+		{
+			progress.touch(retentionMillis);
+		}
+	}
+
+	void completed(String uploadId)
+	{
+		Progress progress = uploads.get(uploadId);
+		if (progress != null)
+		{
+			progress.completed = true;
+			progress.touch(retentionMillis);
+		}
+	}
+
+	private void purge()
+	{
+		long now = System.currentTimeMillis();
+		uploads.values().removeIf(progress -> progress.expiresAt < now);
+	}
+
+	private static final class Progress
+	{
+		private final UploadInfo info;
+
+		private volatile boolean completed;
+
+		private volatile long expiresAt;
+
+		private Progress(UploadInfo info, long retentionMillis)
+		{
+			this.info = info;
+			touch(retentionMillis);
+		}
+
+		private void touch(long retentionMillis)
+		{
+			expiresAt = System.currentTimeMillis() + retentionMillis;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.mycompany;
+
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.protocol.http.servlet.UploadInfo;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.util.lang.Args;
+import com.github.openjson.JSONObject;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the progress of an upload to a {@link StatelessUploadResource} as JSON, for the token
+ * the upload was authorised with. Like the upload itself, it needs no session, so polling it never
+ * waits for a page lock.
+ */
+public class UploadProgressResource implements IResource
+{
+	private static final long serialVersionUID = 1L;
+
+	private final UploadTokens tokens;
+
+	private final UploadProgressRegistry registry;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tokens
+	 *            verifies the tokens
+	 * @param registry
+	 *            tracks the progress of the uploads
+	 */
+	public UploadProgressResource(UploadTokens tokens, UploadProgressRegistry registry)
+	{
+		this.tokens = Args.notNull(tokens, "tokens");
+		this.registry = Args.notNull(registry, "registry");
+	}
+
+	@Override
+	public void respond(Attributes attributes)
+	{
+		ServletWebRequest request = (ServletWebRequest)attributes.getRequest();
+		WebResponse response = (WebResponse)attributes.getResponse();
+		response.disableCaching();
+
+		String uploadId = StatelessUploadResource.verifyToken(tokens, request);
+		if (uploadId == null)
+		{
+			StatelessUploadResource.error(response, HttpServletResponse.SC_UNAUTHORIZED,
+				"upload.token.invalid");
+			return;
+		}
+		UploadInfo info = registry.get(uploadId);
+		if (info == null)
+		{
+			StatelessUploadResource.error(response, HttpServletResponse.SC_NOT_FOUND,
+				"upload.unknown");
+			return;
+		}
+
+		JSONObject json = new JSONObject()
+			.put("uploadId", uploadId)
+			.put("bytesUploaded", info.getBytesUploaded())
+			.put("totalBytes", info.getTotalBytes())
+			.put("percentageComplete", info.getPercentageComplete())
+			.put("transferRate", info.getTransferRateBPS())
+			.put("remainingMilliseconds", info.getRemainingMilliseconds())
+			.put("completed", registry.isCompleted(uploadId));
+		if (info instanceof UploadProgress)
+		{
+			UploadProgress progress = (UploadProgress)info;
+			json.put("currentItem", progress.getCurrentItem())
+				.put("currentName", progress.getCurrentName())
+				.put("currentItemBytes", progress.getCurrentItemBytes());
+		}
+		response.setContentType("application/json");
+		response.write(json.toString());
+	}
+}
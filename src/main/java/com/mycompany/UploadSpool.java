@@ -0,0 +1,451 @@
+package com.mycompany;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.IRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The folder {@link TomcatMultipartServletWebRequestImpl} spools file parts to, and the lifecycle
+ * of the spool files.
+ * <p>
+ * Every spool file is reference counted: the part holding it owns one reference, which it gives
+ * up when it is deleted, when it is written elsewhere (the file is moved, so the ownership is
+ * transferred) or at the latest when the request cycle is detached. Code that needs the file
+ * beyond the request retains another reference. Files without references are deleted in batches
+ * by a background thread, so the request threads never wait for the file system.
+ * <p>
+ * Spool files left behind by a crash are swept when the spool is installed, and files nobody
+ * tracks are swept periodically once they are older than the orphan age. The folder must not be
+ * shared with other processes.
+ */
+public class UploadSpool
+{
+	private static final Logger LOG = LoggerFactory.getLogger(UploadSpool.class);
+
+	private static final MetaDataKey<UploadSpool> KEY = new MetaDataKey<>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	private static final MetaDataKey<ReleaseOnDetach> RELEASE_KEY = new MetaDataKey<>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** used when no application is bound to the current thread or it did not install any */
+	private static final UploadSpool DETACHED = new UploadSpool(
+		new File(System.getProperty("java.io.tmpdir")), null, UploadMetrics.get());
+
+	/** the name pattern of the files DiskFileItem spools to */
+	private static final String PREFIX = "upload_";
+
+	private static final String SUFFIX = ".tmp";
+
+	/** the most files deleted in one batch */
+	private static final int MAX_BATCH = 256;
+
+	private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+	private final File directory;
+
+	private final Duration orphanAge;
+
+	private final UploadMetrics metrics;
+
+	/** the tracked files by name, they are all in the same folder */
+	private final Map<String, SpoolFile> tracked = new ConcurrentHashMap<>();
+
+	private final BlockingQueue<SpoolFile> released = new LinkedBlockingQueue<>();
+
+	private Thread cleaner;
+
+	private volatile boolean closed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param directory
+	 *            the folder to spool to
+	 * @param orphanAge
+	 *            how old an untracked spool file must be to be swept, or {@code null} to never
+	 *            sweep periodically
+	 * @param metrics
+	 *            the metrics to report sweeps to
+	 */
+	public UploadSpool(File directory, Duration orphanAge, UploadMetrics metrics)
+	{
+		this.directory = Args.notNull(directory, "directory").getAbsoluteFile();
+		this.orphanAge = orphanAge;
+		this.metrics = Args.notNull(metrics, "metrics");
+	}
+
+	/**
+	 * Creates the spool of the application in its own folder, sweeps what a previous run left
+	 * there and stops the cleaner when the application is destroyed. Untracked files older than
+	 * an hour are swept periodically.
+	 *
+	 * @param application
+	 *            the application
+	 * @param directory
+	 *            the folder to spool to, created if needed
+	 * @param metrics
+	 *            the metrics of the application
+	 * @return the installed spool
+	 */
+	public static UploadSpool install(Application application, File directory, UploadMetrics metrics)
+	{
+		UploadSpool spool = new UploadSpool(directory, Duration.ofHours(1), metrics);
+		try
+		{
+			Files.createDirectories(spool.directory.toPath());
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not create the spool folder " + directory, e);
+		}
+		// nothing is tracked yet: whatever is older than this run is left over from a previous one
+		int swept = spool.sweep(System.currentTimeMillis());
+		if (swept > 0)
+		{
+			LOG.info("Deleted {} spool files left behind in {}", swept, spool.directory);
+		}
+
+		application.setMetaData(KEY, spool);
+		application.getApplicationListeners().add(new IApplicationListener()
+		{
+			@Override
+			public void onBeforeDestroyed(Application application)
+			{
+				spool.close();
+			}
+		});
+		return spool;
+	}
+
+	/**
+	 * @return the spool of the current application, or one over {@code java.io.tmpdir} that never
+	 *         sweeps
+	 */
+	public static UploadSpool get()
+	{
+		if (Application.exists())
+		{
+			UploadSpool spool = Application.get().getMetaData(KEY);
+			if (spool != null)
+			{
+				return spool;
+			}
+		}
+		return DETACHED;
+	}
+
+	/**
+	 * @return the folder to spool to
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @return the number of spool files that are referenced or waiting to be deleted
+	 */
+	public int getTrackedFiles()
+	{
+		return tracked.size();
+	}
+
+	/**
+	 * Deletes the spool files nobody tracks that were last modified before a point in time. Files
+	 * still being written are modified all the time and therefore never swept.
+	 *
+	 * @param modifiedBefore
+	 *            the time in milliseconds since the epoch
+	 * @return the number of files deleted
+	 */
+	public int sweep(long modifiedBefore)
+	{
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		int swept = 0;
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (!tracked.containsKey(file.getName()) && file.lastModified() < modifiedBefore &&
+					file.delete())
+				{
+					swept++;
+				}
+			}
+		}
+		if (swept > 0)
+		{
+			metrics.spoolFilesSwept(swept);
+		}
+		return swept;
+	}
+
+	/**
+	 * Stops the cleaner and deletes the files waiting for it. Files still referenced are swept on
+	 * the next start.
+	 */
+	public void close()
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			closed = true;
+			thread = cleaner;
+			cleaner = null;
+		}
+		if (thread != null)
+		{
+			thread.interrupt();
+			try
+			{
+				thread.join(TimeUnit.SECONDS.toMillis(10));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		deletePending();
+	}
+
+	/**
+	 * Starts tracking a spool file, with one reference held by the caller.
+	 *
+	 * @param file
+	 *            a file in the spool folder
+	 * @param bytes
+	 *            its size, reported to {@link UploadMetrics} until it is deleted
+	 * @return the tracked file
+	 */
+	SpoolFile track(File file, long bytes)
+	{
+		UploadMetrics requestMetrics = UploadMetrics.get();
+		SpoolFile spoolFile = new SpoolFile(this, file, bytes, requestMetrics);
+		tracked.put(file.getName(), spoolFile);
+		requestMetrics.tempRepositoryBytes(bytes);
+		return spoolFile;
+	}
+
+	/**
+	 * Releases the reference of a part when the current request cycle is detached, unless it is
+	 * released before. Without a request cycle the reference is released when the part is deleted,
+	 * or else the file is eventually swept.
+	 *
+	 * @param item
+	 *            the part
+	 */
+	static void releaseOnDetach(ServletPartFileItem item)
+	{
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle == null)
+		{
+			return;
+		}
+		ReleaseOnDetach listener = cycle.getMetaData(RELEASE_KEY);
+		if (listener == null)
+		{
+			listener = new ReleaseOnDetach();
+			cycle.setMetaData(RELEASE_KEY, listener);
+			cycle.getListeners().add(listener);
+		}
+		listener.items.add(item);
+	}
+
+	private void released(SpoolFile file)
+	{
+		released.add(file);
+		synchronized (this)
+		{
+			if (!closed)
+			{
+				if (cleaner == null)
+				{
+					cleaner = new Thread(this::clean, "upload-spool-cleaner-" + THREAD_COUNTER.incrementAndGet());
+					cleaner.setDaemon(true);
+					cleaner.start();
+				}
+				return;
+			}
+		}
+		// there is no cleaner anymore
+		deletePending();
+	}
+
+	private void clean()
+	{
+		List<SpoolFile> batch = new ArrayList<>(MAX_BATCH);
+		long sweepInterval = orphanAge != null ? orphanAge.toMillis() : Long.MAX_VALUE;
+		long nextSweep = System.currentTimeMillis() + sweepInterval;
+		while (!closed)
+		{
+			try
+			{
+				SpoolFile first = released.poll(Math.min(sweepInterval, TimeUnit.MINUTES.toMillis(1)),
+					TimeUnit.MILLISECONDS);
+				if (first != null)
+				{
+					// everything released meanwhile goes in the same batch
+					batch.add(first);
+					released.drainTo(batch, MAX_BATCH - 1);
+					delete(batch);
+					batch.clear();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// closed
+				break;
+			}
+			long now = System.currentTimeMillis();
+			if (orphanAge != null && now >= nextSweep)
+			{
+				sweep(now - orphanAge.toMillis());
+				nextSweep = now + sweepInterval;
+			}
+		}
+	}
+
+	private void deletePending()
+	{
+		List<SpoolFile> batch = new ArrayList<>();
+		released.drainTo(batch);
+		delete(batch);
+	}
+
+	private void delete(List<SpoolFile> batch)
+	{
+		for (SpoolFile file : batch)
+		{
+			try
+			{
+				// gone already when it was moved by a write
+				Files.deleteIfExists(file.file.toPath());
+			}
+			catch (IOException e)
+			{
+				// a sweep gets it later
+				LOG.warn("Could not delete the spool file {}", file.file, e);
+			}
+			tracked.remove(file.file.getName(), file);
+			file.metrics.tempRepositoryBytes(-file.bytes);
+		}
+	}
+
+	/**
+	 * A reference counted spool file. It is deleted in the background once the last reference is
+	 * released.
+	 */
+	public static final class SpoolFile implements AutoCloseable
+	{
+		private final UploadSpool spool;
+
+		private final File file;
+
+		private final long bytes;
+
+		private final UploadMetrics metrics;
+
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private SpoolFile(UploadSpool spool, File file, long bytes, UploadMetrics metrics)
+		{
+			this.spool = spool;
+			this.file = file;
+			this.bytes = bytes;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * @return the file, which must not be used once the reference is released
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Adds a reference, to be released by the caller.
+		 *
+		 * @return this
+		 * @throws IllegalStateException
+		 *             if the file is already released
+		 */
+		public SpoolFile retain()
+		{
+			int count;
+			do
+			{
+				count = references.get();
+				if (count == 0)
+				{
+					throw new IllegalStateException("The spool file " + file + " is already released");
+				}
+			}
+			while (!references.compareAndSet(count, count + 1));
+			return this;
+		}
+
+		/**
+		 * Releases a reference; the last one hands the file to the cleaner.
+		 */
+		public void release()
+		{
+			int count = references.decrementAndGet();
+			if (count == 0)
+			{
+				spool.released(this);
+			}
+			else if (count < 0)
+			{
+				references.incrementAndGet();
+				throw new IllegalStateException("The spool file " + file + " is already released");
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			release();
+		}
+	}
+
+	/**
+	 * Releases the parts of a request cycle when it is detached.
+	 */
+	private static final class ReleaseOnDetach implements IRequestCycleListener
+	{
+		private final List<ServletPartFileItem> items = new ArrayList<>();
+
+		@Override
+		public void onDetach(RequestCycle cycle)
+		{
+			for (ServletPartFileItem item : items)
+			{
+				item.release();
+			}
+			items.clear();
+		}
+	}
+}
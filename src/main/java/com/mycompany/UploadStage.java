@@ -0,0 +1,92 @@
+package com.mycompany;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+
+/**
+ * A streaming processor of uploaded files, e.g. a virus scanner, a thumbnailer or a metadata
+ * extractor. Stages are added to the {@link UploadPipeline} and see the bytes of every file part
+ * while the multipart parser spools it, instead of re-reading the finished file.
+ */
+public interface UploadStage
+{
+	/**
+	 * @return the name the result of this stage is attached under
+	 */
+	String getName();
+
+	/**
+	 * @return how long the parser waits for the result of this stage once a part has been
+	 *         spooled, {@code null} for the timeout of the {@link UploadPipeline}
+	 */
+	default Duration getTimeout()
+	{
+		return null;
+	}
+
+	/**
+	 * Called on the request thread when the parser starts spooling a file part.
+	 *
+	 * @param uploadId
+	 *            the ID of the upload, e.g. the upload field ID
+	 * @param fieldName
+	 *            the name of the form field
+	 * @param fileName
+	 *            the client file name
+	 * @param contentType
+	 *            the content type sent by the client, may be {@code null}
+	 * @return the sink to receive the bytes of the part, or {@code null} if this stage is not
+	 *         interested in it
+	 */
+	Sink open(String uploadId, String fieldName, String fileName, String contentType);
+
+	/**
+	 * Receives the bytes of one part, in order and from a single thread at a time, but not on the
+	 * request thread.
+	 */
+	interface Sink
+	{
+		/**
+		 * @param bytes
+		 *            the next bytes of the part, a read-only view shared with the other stages;
+		 *            the bytes are never modified afterwards, so the view may be kept
+		 * @throws UploadVetoException
+		 *             to have the part dropped
+		 * @throws Exception
+		 *             if the stage failed, the failure becomes its result
+		 */
+		void accept(ByteBuffer bytes) throws Exception;
+
+		/**
+		 * Called after the last bytes of the part.
+		 *
+		 * @return the result attached to the uploaded file, may be {@code null}
+		 * @throws UploadVetoException
+		 *             to have the part dropped
+		 * @throws Exception
+		 *             if the stage failed, the failure becomes its result
+		 */
+		Object finish() throws Exception;
+
+		/**
+		 * @return true if this sink takes over the part: the part is then neither spooled nor
+		 *         handed to the application, only to the stages
+		 */
+		default boolean consumesPart()
+		{
+			return false;
+		}
+
+		/**
+		 * Called instead of {@link #finish()} when the upload failed or the part was vetoed by
+		 * another stage. A stage that was already finished when the veto came is not told.
+		 * <p>
+		 * When the stage does not finish within its timeout, this is called on the request thread
+		 * while the stage may still be busy in {@link #accept(ByteBuffer)} or {@link #finish()}, so
+		 * it can e.g. close a connection the stage is blocked on.
+		 */
+		default void abort()
+		{
+		}
+	}
+}
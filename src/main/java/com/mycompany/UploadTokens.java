@@ -0,0 +1,190 @@
+package com.mycompany;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Issues and verifies the short-lived tokens authorising uploads to a
+ * {@link StatelessUploadResource}. A token names the upload it is good for and when it expires,
+ * signed with HMAC-SHA256, so any node sharing the key can verify it without a session or a
+ * shared store.
+ */
+public class UploadTokens
+{
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private final SecretKeySpec key;
+
+	private final Duration timeToLive;
+
+	private volatile Duration queryTimeToLive;
+
+	/**
+	 * Constructor
+	 *
+	 * @param key
+	 *            the signing key, at least 32 bytes and the same on every node
+	 * @param timeToLive
+	 *            how long issued tokens are valid
+	 */
+	public UploadTokens(byte[] key, Duration timeToLive)
+	{
+		Args.notNull(key, "key");
+		if (key.length < 32)
+		{
+			throw new IllegalArgumentException("The upload token key must have at least 32 bytes");
+		}
+		this.key = new SecretKeySpec(key.clone(), ALGORITHM);
+		this.timeToLive = Args.notNull(timeToLive, "timeToLive");
+	}
+
+	/**
+	 * @return a random key, for a single node
+	 */
+	public static byte[] randomKey()
+	{
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		return key;
+	}
+
+	/**
+	 * @return how long issued tokens are valid
+	 */
+	public Duration getTimeToLive()
+	{
+		return timeToLive;
+	}
+
+	/**
+	 * @return the longest time to live of the tokens accepted in a query string, {@code null} if
+	 *         they are refused
+	 */
+	public Duration getQueryTimeToLive()
+	{
+		return queryTimeToLive;
+	}
+
+	/**
+	 * Lets clients that cannot set headers send their token in the query string. Such tokens end
+	 * up in access and proxy logs, so only short-lived ones (see {@link #issue(String, Duration)})
+	 * are accepted there.
+	 *
+	 * @param queryTimeToLive
+	 *            the longest time to live of the tokens accepted in a query string, {@code null}
+	 *            (the default) to refuse them
+	 */
+	public void setQueryTimeToLive(Duration queryTimeToLive)
+	{
+		this.queryTimeToLive = queryTimeToLive;
+	}
+
+	/**
+	 * @param uploadId
+	 *            the ID the upload is stored and tracked under
+	 * @return a token authorising one upload with that ID until it expires
+	 */
+	public String issue(String uploadId)
+	{
+		return issue(uploadId, timeToLive);
+	}
+
+	/**
+	 * @param uploadId
+	 *            the ID the upload is stored and tracked under
+	 * @param timeToLive
+	 *            how long the token is valid, e.g. the query time to live for a query token
+	 * @return a token authorising one upload with that ID until it expires
+	 */
+	public String issue(String uploadId, Duration timeToLive)
+	{
+		Args.notEmpty(uploadId, "uploadId");
+		Args.notNull(timeToLive, "timeToLive");
+		long expiresAt = System.currentTimeMillis() + timeToLive.toMillis();
+		String payload = ENCODER.encodeToString(uploadId.getBytes(StandardCharsets.UTF_8)) + '.' +
+			expiresAt;
+		return payload + '.' + ENCODER.encodeToString(sign(payload));
+	}
+
+	/**
+	 * @param token
+	 *            a token, may be {@code null}
+	 * @return the upload ID the token was issued for, or {@code null} if it is malformed, forged
+	 *         or expired
+	 */
+	public String verify(String token)
+	{
+		return verify(token, null);
+	}
+
+	/**
+	 * @param token
+	 *            a token, may be {@code null}
+	 * @param maxTimeToLive
+	 *            the longest time the token may still be valid for, {@code null} for any
+	 * @return the upload ID the token was issued for, or {@code null} if it is malformed, forged,
+	 *         expired or valid for longer than {@code maxTimeToLive}
+	 */
+	public String verify(String token, Duration maxTimeToLive)
+	{
+		if (token == null)
+		{
+			return null;
+		}
+		int signatureDot = token.lastIndexOf('.');
+		int expiryDot = signatureDot > 0 ? token.lastIndexOf('.', signatureDot - 1) : -1;
+		if (expiryDot <= 0)
+		{
+			return null;
+		}
+		String payload = token.substring(0, signatureDot);
+		try
+		{
+			byte[] signature = DECODER.decode(token.substring(signatureDot + 1));
+			// constant time, so the signature cannot be guessed byte by byte
+			if (!MessageDigest.isEqual(signature, sign(payload)))
+			{
+				return null;
+			}
+			long expiresAt = Long.parseLong(token.substring(expiryDot + 1, signatureDot));
+			long now = System.currentTimeMillis();
+			if (now > expiresAt || (maxTimeToLive != null && expiresAt - now > maxTimeToLive.toMillis()))
+			{
+				return null;
+			}
+			return new String(DECODER.decode(token.substring(0, expiryDot)), StandardCharsets.UTF_8);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// not base64, or not a number
+			return null;
+		}
+	}
+
+	private byte[] sign(String payload)
+	{
+		try
+		{
+			// Mac instances are not thread safe, and cheap compared to an upload
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new WicketRuntimeException("Could not sign an upload token", e);
+		}
+	}
+}
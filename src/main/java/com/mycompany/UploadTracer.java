@@ -0,0 +1,176 @@
+package com.mycompany;
+
+import org.apache.tomcat.util.http.fileupload.FileItem;
+
+/**
+ * Emits the {@link UploadEvents} of a single multipart request. Not thread safe: a request is
+ * parsed by one thread.
+ */
+class UploadTracer
+{
+	private final String uploadId;
+
+	private final UploadEvents.Request request = new UploadEvents.Request();
+
+	private final boolean partsEnabled;
+
+	private final boolean timingReads;
+
+	private long readNanos;
+
+	private long bytesRead;
+
+	private int partIndex = -1;
+
+	private UploadEvents.Part part;
+
+	private FileItem partItem;
+
+	private long partReadNanosStart;
+
+	/**
+	 * Constructor. Starts timing the request.
+	 *
+	 * @param uploadId
+	 *            the upload identifier
+	 */
+	UploadTracer(String uploadId)
+	{
+		this.uploadId = uploadId;
+		request.begin();
+		partsEnabled = new UploadEvents.Part().isEnabled();
+		timingReads = request.isEnabled() || partsEnabled;
+	}
+
+	/**
+	 * @return whether request body reads should be timed and reported with {@link #read(long, int)}
+	 */
+	boolean isTimingReads()
+	{
+		return timingReads;
+	}
+
+	/**
+	 * @param nanos
+	 *            time spent in a read of the request body
+	 * @param bytes
+	 *            bytes returned by that read
+	 */
+	void read(long nanos, int bytes)
+	{
+		readNanos += nanos;
+		bytesRead += Math.max(bytes, 0);
+	}
+
+	/**
+	 * Ends the event of the previous part, if any, and starts the one of a new part.
+	 *
+	 * @param item
+	 *            the item the new part is spooled to
+	 */
+	void partStarted(FileItem item)
+	{
+		endPart();
+		partIndex++;
+		if (partsEnabled)
+		{
+			part = new UploadEvents.Part();
+			part.begin();
+			partItem = item;
+			partReadNanosStart = readNanos;
+		}
+	}
+
+	/**
+	 * Records the parts the container had already read, they have no events of their own.
+	 *
+	 * @param parts
+	 *            the number of parts
+	 * @param bytes
+	 *            the bytes the container read for them
+	 */
+	void partsAdopted(int parts, long bytes)
+	{
+		partIndex += parts;
+		bytesRead += bytes;
+	}
+
+	/**
+	 * Ends all pending events.
+	 *
+	 * @param contentLength
+	 *            the request content length, -1 if unknown
+	 */
+	void finished(long contentLength)
+	{
+		endPart();
+		request.end();
+		if (request.shouldCommit())
+		{
+			request.uploadId = uploadId;
+			request.contentLength = contentLength;
+			request.bytesRead = bytesRead;
+			request.parts = partIndex + 1;
+			request.networkReadTime = readNanos;
+			request.commit();
+		}
+	}
+
+	/**
+	 * Starts the event of a form field decode. Callers must end it with
+	 * {@link #fieldDecoded(UploadEvents.FieldDecode, int, String, long)}.
+	 *
+	 * @return the started event
+	 */
+	UploadEvents.FieldDecode fieldDecodeStarted()
+	{
+		UploadEvents.FieldDecode event = new UploadEvents.FieldDecode();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event
+	 *            the event returned by {@link #fieldDecodeStarted()}
+	 * @param index
+	 *            the index of the decoded part
+	 * @param fieldName
+	 *            the field name
+	 * @param bytes
+	 *            the encoded size of the value
+	 */
+	void fieldDecoded(UploadEvents.FieldDecode event, int index, String fieldName, long bytes)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.uploadId = uploadId;
+			event.partIndex = index;
+			event.fieldName = fieldName;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+	private void endPart()
+	{
+		if (part == null)
+		{
+			return;
+		}
+		part.end();
+		if (part.shouldCommit())
+		{
+			part.uploadId = uploadId;
+			part.partIndex = partIndex;
+			part.fieldName = partItem.getFieldName();
+			part.fileName = partItem.getName();
+			part.bytes = partItem.getSize();
+			part.inMemory = partItem.isInMemory();
+			part.networkReadTime = readNanos - partReadNanosStart;
+			part.commit();
+		}
+		part = null;
+		partItem = null;
+	}
+}
@@ -0,0 +1,36 @@
+package com.mycompany;
+
+import org.apache.wicket.WicketRuntimeException;
+
+/**
+ * Thrown by an {@link UploadStage.Sink} to have the part it is processing dropped from the
+ * upload, e.g. because a virus was found in it.
+ */
+public class UploadVetoException extends WicketRuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor
+	 *
+	 * @param message
+	 *            why the part was vetoed
+	 */
+	public UploadVetoException(String message)
+	{
+		super(message);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param message
+	 *            why the part was vetoed
+	 * @param cause
+	 *            the failure that led to the veto
+	 */
+	public UploadVetoException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+}
@@ -0,0 +1,305 @@
+package com.mycompany;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes staged uploads durable in the background. Request threads hand over a file that has
+ * already been moved next to its final location and get a {@link CompletableFuture} back; the
+ * workers drain their queues in batches. Each batch forces the data of its files back to back,
+ * renames them into place and then syncs every touched directory once, rather than once per file.
+ * The stored uploads are then journaled in the {@link UploadCatalog}, again with one force per
+ * batch.
+ * <p>
+ * Files of {@code largeThreshold} bytes or more go to a lane of their own, with its own queue and
+ * workers, and are made durable one at a time: forcing a huge file can take minutes, which small
+ * files queued behind it, or batched with it, would otherwise wait for. Within a lane the workers
+ * are shared fairly among tenants (e.g. sessions) by a {@link FairQueue}, so one tenant storing many
+ * files does not hold up the others either.
+ * <p>
+ * When the queue of a lane is full {@link #submit(Path, UploadCatalog.Entry, String, int)} blocks,
+ * which pushes back on the uploaders instead of letting the backlog grow without bounds.
+ */
+class UploadWriteBehind
+{
+	private static final Logger LOG = LoggerFactory.getLogger(UploadWriteBehind.class);
+
+	private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+	private final Lane small;
+
+	private final Lane large;
+
+	private final long largeThreshold;
+
+	private final ExecutorService workers;
+
+	private final UploadMetrics metrics;
+
+	private final UploadCatalog catalog;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            how many writes may be waiting in each lane before submitters block
+	 * @param smallWorkers
+	 *            number of worker threads for files smaller than {@code largeThreshold}
+	 * @param largeWorkers
+	 *            number of worker threads for the larger files
+	 * @param largeThreshold
+	 *            the size from which files are written in the lane for large files
+	 * @param maxBatch
+	 *            the largest number of small files made durable together
+	 * @param metrics
+	 *            the metrics to feed
+	 * @param catalog
+	 *            the catalog of the stored uploads
+	 */
+	UploadWriteBehind(int capacity, int smallWorkers, int largeWorkers, long largeThreshold, int maxBatch,
+		UploadMetrics metrics, UploadCatalog catalog)
+	{
+		Args.withinRange(1, Integer.MAX_VALUE, capacity, "capacity");
+		Args.withinRange(1, Integer.MAX_VALUE, smallWorkers, "smallWorkers");
+		Args.withinRange(1, Integer.MAX_VALUE, largeWorkers, "largeWorkers");
+		Args.withinRange(1, Integer.MAX_VALUE, maxBatch, "maxBatch");
+		this.largeThreshold = Args.withinRange(0L, Long.MAX_VALUE, largeThreshold, "largeThreshold");
+		this.small = new Lane(new FairQueue<>(capacity), maxBatch, true);
+		this.large = new Lane(new FairQueue<>(capacity), 1, false);
+		this.metrics = Args.notNull(metrics, "metrics");
+		this.catalog = Args.notNull(catalog, "catalog");
+
+		int pool = POOL_COUNTER.incrementAndGet();
+		AtomicInteger threadCounter = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(smallWorkers + largeWorkers, runnable -> {
+			Thread thread = new Thread(runnable,
+				"upload-write-behind-" + pool + "-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < smallWorkers; i++)
+		{
+			workers.execute(() -> drain(small));
+		}
+		for (int i = 0; i < largeWorkers; i++)
+		{
+			workers.execute(() -> drain(large));
+		}
+	}
+
+	/**
+	 * Queues a staged file to be made durable at its target location.
+	 *
+	 * @param staged
+	 *            the staged file, on the same file system as the target
+	 * @param entry
+	 *            the catalog entry of the upload, with its final location and size
+	 * @param tenant
+	 *            whom the file is stored for, the workers are shared fairly among tenants
+	 * @param weight
+	 *            the share of the tenant, relative to the tenants with weight 1
+	 * @return a future completed with the final location once it is durable
+	 * @throws IllegalStateException
+	 *             if the pipeline has been closed
+	 */
+	CompletableFuture<Path> submit(Path staged, UploadCatalog.Entry entry, String tenant, int weight)
+	{
+		PendingWrite write = new PendingWrite(staged, entry);
+		Lane lane = entry.getSize() < largeThreshold ? small : large;
+		try
+		{
+			lane.queue.put(tenant, weight, entry.getSize(), write);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new WicketRuntimeException("Interrupted while queueing " + entry.getLocation(), e);
+		}
+		catch (IllegalStateException e)
+		{
+			throw new IllegalStateException("The write-behind pipeline has been closed", e);
+		}
+		metrics.writeBehindQueued(1);
+		return write.future;
+	}
+
+	/**
+	 * Stops accepting writes, completes the queued ones and stops the workers.
+	 */
+	void close()
+	{
+		// the queues refuse writes from now on, the workers stop once theirs is drained
+		small.queue.close();
+		large.queue.close();
+		workers.shutdown();
+		try
+		{
+			if (!workers.awaitTermination(1, TimeUnit.MINUTES))
+			{
+				LOG.warn("{} queued uploads were not made durable in time",
+					small.queue.size() + large.queue.size());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain(Lane lane)
+	{
+		List<PendingWrite> batch = new ArrayList<>(lane.maxBatch);
+		while (true)
+		{
+			try
+			{
+				if (lane.queue.drainTo(batch, lane.maxBatch, 100, TimeUnit.MILLISECONDS) == 0)
+				{
+					if (lane.queue.isDrained())
+					{
+						return;
+					}
+					continue;
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			metrics.writeBehindQueued(-batch.size());
+			try
+			{
+				writeBatch(batch, lane);
+			}
+			catch (RuntimeException e)
+			{
+				for (PendingWrite write : batch)
+				{
+					write.future.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void writeBatch(List<PendingWrite> batch, Lane lane)
+	{
+		List<PendingWrite> moved = new ArrayList<>(batch.size());
+		for (PendingWrite write : batch)
+		{
+			try
+			{
+				try (FileChannel channel = FileChannel.open(write.staged, StandardOpenOption.WRITE))
+				{
+					channel.force(true);
+				}
+				Files.move(write.staged, write.target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+				moved.add(write);
+			}
+			catch (IOException e)
+			{
+				LOG.error("Could not store upload {}", write.target, e);
+				write.future.completeExceptionally(e);
+			}
+		}
+
+		Set<Path> directories = new LinkedHashSet<>();
+		for (PendingWrite write : moved)
+		{
+			directories.add(write.target.getParent());
+		}
+		for (Path directory : directories)
+		{
+			syncDirectory(directory);
+		}
+
+		List<UploadCatalog.Entry> entries = new ArrayList<>(moved.size());
+		for (PendingWrite write : moved)
+		{
+			entries.add(write.entry);
+		}
+		try
+		{
+			catalog.addAll(entries);
+		}
+		catch (IOException e)
+		{
+			// the files are durable, lookups will find them on disk
+			LOG.error("Could not journal {} stored uploads", entries.size(), e);
+		}
+
+		for (PendingWrite write : moved)
+		{
+			metrics.writtenBehind(write.submittedNanos, lane.small);
+			write.future.complete(write.target);
+		}
+	}
+
+	private static void syncDirectory(Path directory)
+	{
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+		catch (IOException e)
+		{
+			// some platforms (e.g. Windows) cannot open directories, renames are durable there anyway
+			LOG.debug("Could not sync directory {}", directory, e);
+		}
+	}
+
+	private static final class Lane
+	{
+		private final FairQueue<PendingWrite> queue;
+
+		private final int maxBatch;
+
+		private final boolean small;
+
+		private Lane(FairQueue<PendingWrite> queue, int maxBatch, boolean small)
+		{
+			this.queue = queue;
+			this.maxBatch = maxBatch;
+			this.small = small;
+		}
+	}
+
+	private static final class PendingWrite
+	{
+		private final Path staged;
+
+		private final Path target;
+
+		private final UploadCatalog.Entry entry;
+
+		private final long submittedNanos = System.nanoTime();
+
+		private final CompletableFuture<Path> future = new CompletableFuture<>();
+
+		private PendingWrite(Path staged, UploadCatalog.Entry entry)
+		{
+			this.staged = staged;
+			this.entry = entry;
+			this.target = entry.getLocation();
+		}
+	}
+}
@@ -1,16 +1,20 @@
 package com.mycompany;
 
+import java.time.Duration;
+import java.util.Base64;
 import org.apache.commons.fileupload2.core.FileUploadException;
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
 import org.apache.wicket.csp.CSPDirective;
 import org.apache.wicket.csp.CSPDirectiveSrcValue;
 import org.apache.wicket.markup.html.WebPage;
-import org.apache.wicket.markup.html.form.upload.FileUpload;
 import org.apache.wicket.markup.html.form.upload.resource.FileUploadResourceReference;
-import org.apache.wicket.markup.html.form.upload.resource.IUploadsFileManager;
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.protocol.http.servlet.MultipartServletWebRequest;
 import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
 import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.util.file.File;
 import org.apache.wicket.util.lang.Bytes;
 import jakarta.servlet.http.HttpServletRequest;
@@ -21,6 +25,10 @@ import jakarta.servlet.http.HttpServletRequest;
  */
 public class WicketApplication extends WebApplication
 {
+	private WriteBehindUploadsFileManager uploadsFileManager;
+
+	private UploadTokens uploadTokens;
+
 	/**
 	 * @see org.apache.wicket.Application#getHomePage()
 	 */
@@ -44,23 +52,133 @@ public class WicketApplication extends WebApplication
 			.add(CSPDirective.STYLE_SRC, "https://fonts.googleapis.com/css")
 			.add(CSPDirective.FONT_SRC, "https://fonts.gstatic.com");
 
-		mountResource("/file-upload", FileUploadResourceReference.createNewInstance(new IUploadsFileManager() {
+		UploadMetrics metrics = UploadMetrics.install(this);
+		UploadPipeline pipeline = UploadPipeline.install(this);
+		UploadSpool.install(this, getSpoolFolder(), metrics);
+		UploadMemoryBudget.install(this, getUploadMemoryBudget(), metrics);
+
+		WriteBehindUploadsFileManager fileManager = new WriteBehindUploadsFileManager(getUploadsFolder(), metrics);
+		fileManager.checkSameFileSystem(getSpoolFolder());
+		uploadsFileManager = fileManager;
+		if (Boolean.getBoolean("uploads.extractArchives"))
+		{
+			// ZIP and TAR uploads are unpacked into the storage instead of being stored as is
+			pipeline.add(new ArchiveExtractionStage(fileManager));
+		}
+		getApplicationListeners().add(new IApplicationListener() {
 			@Override
-			public void save(FileUpload fileItem, String uploadFieldId) {
-				System.out.println("save " + fileItem);
+			public void onBeforeDestroyed(Application application) {
+				fileManager.close();
 			}
+		});
+		mountResource("/file-upload", FileUploadResourceReference.createNewInstance(fileManager));
+
+		// session-less uploads for API clients, authorised by tokens from getUploadTokens()
+		uploadTokens = new UploadTokens(getUploadTokenKey(), Duration.ofMinutes(15));
+		Long queryTokenSeconds = Long.getLong("uploads.queryTokenSeconds");
+		if (queryTokenSeconds != null)
+		{
+			// tokens in the query string end up in the logs, so they are opt-in and short-lived
+			uploadTokens.setQueryTimeToLive(Duration.ofSeconds(queryTokenSeconds));
+		}
+
+		mountResource("/file-download/${" + UploadDownloadResource.UPLOAD_FIELD_ID + "}/${" +
+			UploadDownloadResource.CLIENT_FILE_NAME + "}",
+			resourceReference("file-download", new UploadDownloadResource(fileManager, uploadTokens)));
+
+		UploadProgressRegistry progressRegistry = new UploadProgressRegistry(uploadTokens.getTimeToLive());
+		mountResource("/api/upload", resourceReference("api-upload", new StatelessUploadResource(
+			fileManager, uploadTokens, progressRegistry, getApplicationSettings().getDefaultMaximumUploadSize())));
+		mountResource("/api/upload-progress", resourceReference("api-upload-progress",
+			new UploadProgressResource(uploadTokens, progressRegistry)));
 
+		getApplicationSettings().setUploadProgressUpdatesEnabled(true);
+	}
+
+	private static ResourceReference resourceReference(String name, IResource resource)
+	{
+		return new ResourceReference(name)
+		{
 			@Override
-			public File getFile(String uploadFieldId, String clientFileName) {
-				return null;
+			public IResource getResource()
+			{
+				return resource;
 			}
-		}));
-		getApplicationSettings().setUploadProgressUpdatesEnabled(true);
+		};
 	}
 
 
-	/*
-	Uncomment this to use tomcat machinery.
+	/**
+	 * @return the manager storing the uploaded files
+	 */
+	public WriteBehindUploadsFileManager getUploadsFileManager()
+	{
+		return uploadsFileManager;
+	}
+
+	/**
+	 * @return the issuer of the tokens authorising uploads to {@code /api/upload}
+	 */
+	public UploadTokens getUploadTokens()
+	{
+		return uploadTokens;
+	}
+
+	/**
+	 * @return the key signing upload tokens, the base64 {@code uploads.tokenKey} system property
+	 *         (to be shared by all nodes) or a random key
+	 */
+	protected byte[] getUploadTokenKey()
+	{
+		String key = System.getProperty("uploads.tokenKey");
+		return key != null ? Base64.getDecoder().decode(key) : UploadTokens.randomKey();
+	}
+
+	/**
+	 * @return the folder uploaded files are stored in, {@code uploads.folder} system property or
+	 *         a folder in {@code java.io.tmpdir}
+	 */
+	protected File getUploadsFolder()
+	{
+		String folder = System.getProperty("uploads.folder");
+		if (folder == null)
+		{
+			folder = new File(System.getProperty("java.io.tmpdir"), "file-upload-broken").getAbsolutePath();
+		}
+		return new File(folder);
+	}
+
+	/**
+	 * @return the folder file parts are spooled to while they are uploaded, {@code uploads.spoolFolder}
+	 *         system property or a folder in {@code java.io.tmpdir}; it is swept on startup, so it
+	 *         must not be shared, and it must be on the file system of {@link #getUploadsFolder()},
+	 *         so that saving an upload is a rename
+	 */
+	protected File getSpoolFolder()
+	{
+		String folder = System.getProperty("uploads.spoolFolder");
+		if (folder == null)
+		{
+			folder = new File(System.getProperty("java.io.tmpdir"), "file-upload-broken-spool").getAbsolutePath();
+		}
+		return new File(folder);
+	}
+
+	/**
+	 * @return the most bytes of file parts all uploads together may hold in memory,
+	 *         {@code uploads.memoryBudget} system property or {@link UploadMemoryBudget#defaultLimit()};
+	 *         parts the container parses are bound by the {@code fileSizeThreshold} of
+	 *         {@link CustomWicketServlet} instead
+	 */
+	protected long getUploadMemoryBudget()
+	{
+		return Long.getLong("uploads.memoryBudget", UploadMemoryBudget.defaultLimit());
+	}
+
+	/**
+	 * Parses multipart requests with {@link TomcatMultipartServletWebRequestImpl} instead of
+	 * Wicket's own parser, for the form posts and the {@code /file-upload} resource alike.
+	 */
 	@Override
 	public WebRequest newWebRequest(HttpServletRequest servletRequest, String filterPath) {
 		return new ServletWebRequest(servletRequest, filterPath) {
@@ -70,5 +188,4 @@ public class WicketApplication extends WebApplication
 			}
 		};
 	}
-	 */
 }
@@ -0,0 +1,445 @@
+package com.mycompany;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.markup.html.form.upload.FileUpload;
+import org.apache.wicket.markup.html.form.upload.resource.FolderUploadsFileManager;
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.string.Strings;
+
+/**
+ * A {@link FolderUploadsFileManager} that does not make the uploader wait for durable writes.
+ * {@link #save(FileUpload, String)} only moves the upload into a staging folder next to the
+ * storage folder and hands it to an {@link UploadWriteBehind}; callers that need to know when the
+ * file is durable use {@link #saveAsync(FileUpload, String)} instead. The move is a rename only
+ * if the upload is spooled on the file system of the storage, otherwise it is a copy the uploader
+ * waits for, see {@link #checkSameFileSystem(File)}.
+ * <p>
+ * Files from 8MiB on are made durable in a lane of their own, so that small files saved at the
+ * same time never wait for a huge one. In each lane the writes are shared fairly among the tenants
+ * of {@link #getTenant(String)}, by bytes and in proportion to {@link #getWeight(String)}.
+ * <p>
+ * {@link #getFile(String, String)} waits for a pending write of the requested file, so a file is
+ * never seen half written, and then looks it up in an {@link UploadCatalog} kept in the storage
+ * folder.
+ * <p>
+ * The upload field IDs saved from a request with a session are remembered in that session, see
+ * {@link #isStoredBySession(String)}.
+ */
+public class WriteBehindUploadsFileManager extends FolderUploadsFileManager
+{
+	private static final String STAGING_FOLDER = ".staging";
+
+	private static final String CATALOG_JOURNAL = ".catalog/journal";
+
+	/** the upload field IDs the session saved uploads under */
+	private static final MetaDataKey<HashSet<String>> SESSION_UPLOADS = new MetaDataKey<>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final Path staging;
+
+	private final UploadWriteBehind writeBehind;
+
+	private final UploadCatalog catalog;
+
+	private final UploadMetrics metrics;
+
+	private final Map<Path, CompletableFuture<Path>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param folder
+	 *            the storage folder
+	 * @param metrics
+	 *            the metrics to feed
+	 */
+	public WriteBehindUploadsFileManager(File folder, UploadMetrics metrics)
+	{
+		this(folder, metrics, 256, 2, 32, 100_000);
+	}
+
+	/**
+	 * Constructor, with one worker for files from 8MiB on.
+	 *
+	 * @param folder
+	 *            the storage folder
+	 * @param metrics
+	 *            the metrics to feed
+	 * @param queueCapacity
+	 *            how many saves may be waiting to be made durable before uploaders block
+	 * @param workers
+	 *            number of threads making small saves durable
+	 * @param maxBatch
+	 *            the largest number of saves made durable together
+	 * @param catalogCapacity
+	 *            the number of catalog entries kept in memory
+	 */
+	public WriteBehindUploadsFileManager(File folder, UploadMetrics metrics, int queueCapacity,
+		int workers, int maxBatch, int catalogCapacity)
+	{
+		this(folder, metrics, queueCapacity, workers, 1, 8L * 1024 * 1024, maxBatch, catalogCapacity);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param folder
+	 *            the storage folder
+	 * @param metrics
+	 *            the metrics to feed
+	 * @param queueCapacity
+	 *            how many saves of small, and of large, files may be waiting to be made durable
+	 *            before uploaders block
+	 * @param smallWorkers
+	 *            number of threads making small files durable
+	 * @param largeWorkers
+	 *            number of threads making large files durable
+	 * @param largeThreshold
+	 *            the size from which a file is large
+	 * @param maxBatch
+	 *            the largest number of small files made durable together
+	 * @param catalogCapacity
+	 *            the number of catalog entries kept in memory
+	 */
+	public WriteBehindUploadsFileManager(File folder, UploadMetrics metrics, int queueCapacity,
+		int smallWorkers, int largeWorkers, long largeThreshold, int maxBatch, int catalogCapacity)
+	{
+		super(folder);
+		this.metrics = Args.notNull(metrics, "metrics");
+		staging = folder.toPath().resolve(STAGING_FOLDER);
+		try
+		{
+			Files.createDirectories(staging);
+		}
+		catch (IOException e)
+		{
+			throw new WicketRuntimeException(e);
+		}
+		catalog = new UploadCatalog(folder.toPath().resolve(CATALOG_JOURNAL), catalogCapacity);
+		writeBehind = new UploadWriteBehind(queueCapacity, smallWorkers, largeWorkers, largeThreshold,
+			maxBatch, metrics, catalog);
+	}
+
+	/**
+	 * Checks that uploads spooled to a folder can be moved into the storage by a rename. Wicket's
+	 * {@link FileUpload} does not hand out the spooled file, only
+	 * {@link FileUpload#writeTo(java.io.File)} it, so from another file system each save would be
+	 * a full copy on the request thread.
+	 *
+	 * @param spoolFolder
+	 *            the folder the multipart parser spools file parts to
+	 * @throws WicketRuntimeException
+	 *             if the folder is on another file system than the storage
+	 */
+	public void checkSameFileSystem(File spoolFolder)
+	{
+		try
+		{
+			Files.createDirectories(spoolFolder.toPath());
+			if (!Files.getFileStore(spoolFolder.toPath()).equals(Files.getFileStore(staging)))
+			{
+				throw new WicketRuntimeException("The spool folder " + spoolFolder +
+					" is not on the file system of the upload storage " + getFolder() +
+					", every save would copy the upload while the uploader waits");
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WicketRuntimeException("Could not check the file system of " + spoolFolder, e);
+		}
+	}
+
+	@Override
+	public void save(FileUpload fileItem, String uploadFieldId)
+	{
+		saveAsync(fileItem, uploadFieldId);
+	}
+
+	/**
+	 * Stages an upload and queues it to be made durable.
+	 *
+	 * @param fileItem
+	 *            the upload
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 * @return a future completed with the stored file once it is durable
+	 */
+	public CompletableFuture<Path> saveAsync(FileUpload fileItem, String uploadFieldId)
+	{
+		long start = System.nanoTime();
+		UploadEvents.Save event = new UploadEvents.Save();
+		event.begin();
+		try
+		{
+			Path target = resolve(uploadFieldId, fileItem.getClientFileName());
+			Files.createDirectories(target.getParent());
+			Path staged = staging.resolve(UUID.randomUUID().toString());
+			fileItem.writeTo(staged.toFile());
+			rememberInSession(uploadFieldId);
+
+			UploadCatalog.Entry entry = new UploadCatalog.Entry(uploadFieldId,
+				fileItem.getClientFileName(), target, fileItem.getSize(), System.currentTimeMillis());
+			CompletableFuture<Path> future = submit(staged, entry, getTenant(uploadFieldId));
+			pending.put(target, future);
+			future.whenComplete((path, failure) -> pending.remove(target, future));
+			return future;
+		}
+		catch (Exception e)
+		{
+			throw new WicketRuntimeException("Could not save " + fileItem.getClientFileName(), e);
+		}
+		finally
+		{
+			metrics.saved(start);
+			event.end();
+			if (event.shouldCommit())
+			{
+				event.uploadId = uploadFieldId;
+				event.fileName = fileItem.getClientFileName();
+				event.bytes = fileItem.getSize();
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Stores a file read from a stream, e.g. an entry of an uploaded archive, and queues it to be
+	 * made durable.
+	 *
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 * @param name
+	 *            the name of the file, may contain {@code /} separated folders
+	 * @param in
+	 *            the content, read to its end but not closed
+	 * @return a future completed with the stored file once it is durable
+	 * @throws IOException
+	 *             if the content cannot be read or staged
+	 */
+	public CompletableFuture<Path> storeAsync(String uploadFieldId, String name, InputStream in)
+		throws IOException
+	{
+		rememberInSession(uploadFieldId);
+		return storeAsync(uploadFieldId, name, in, getTenant(uploadFieldId));
+	}
+
+	/**
+	 * Stores a file read from a stream for a tenant, e.g. from a thread without the request the
+	 * upload came with. That request should have called {@link #rememberInSession(String)} and
+	 * {@link #getTenant(String)}.
+	 *
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 * @param name
+	 *            the name of the file, may contain {@code /} separated folders
+	 * @param in
+	 *            the content, read to its end but not closed
+	 * @param tenant
+	 *            whom the file is stored for, see {@link #getTenant(String)}
+	 * @return a future completed with the stored file once it is durable
+	 * @throws IOException
+	 *             if the content cannot be read or staged
+	 */
+	public CompletableFuture<Path> storeAsync(String uploadFieldId, String name, InputStream in,
+		String tenant) throws IOException
+	{
+		long start = System.nanoTime();
+		Path target = resolve(uploadFieldId, name);
+		Files.createDirectories(target.getParent());
+		Path staged = staging.resolve(UUID.randomUUID().toString());
+		long size;
+		try
+		{
+			size = Files.copy(in, staged);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			Files.deleteIfExists(staged);
+			throw e;
+		}
+
+		UploadCatalog.Entry entry = new UploadCatalog.Entry(uploadFieldId, name, target, size,
+			System.currentTimeMillis());
+		CompletableFuture<Path> future = submit(staged, entry, tenant);
+		pending.put(target, future);
+		future.whenComplete((path, failure) -> pending.remove(target, future));
+		metrics.saved(start);
+		return future;
+	}
+
+	private CompletableFuture<Path> submit(Path staged, UploadCatalog.Entry entry, String tenant)
+	{
+		return writeBehind.submit(staged, entry, tenant, getWeight(tenant));
+	}
+
+	/**
+	 * Tells whom an upload is stored for, the write-behind workers are shared fairly among them.
+	 *
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 * @return the ID of the session when called from a request with a session, the ID of the
+	 *         upload otherwise
+	 */
+	protected String getTenant(String uploadFieldId)
+	{
+		if (Session.exists() && Session.get().getId() != null)
+		{
+			return "session:" + Session.get().getId();
+		}
+		return "upload:" + uploadFieldId;
+	}
+
+	/**
+	 * @param tenant
+	 *            a tenant of {@link #getTenant(String)}
+	 * @return the share of the write-behind workers the tenant gets relative to a tenant with
+	 *         weight 1, by default 1
+	 */
+	protected int getWeight(String tenant)
+	{
+		return 1;
+	}
+
+	/**
+	 * Tells whether the session of the current request saved uploads under an upload field ID.
+	 *
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 * @return {@code false} without a session
+	 */
+	public boolean isStoredBySession(String uploadFieldId)
+	{
+		if (!Session.exists())
+		{
+			return false;
+		}
+		HashSet<String> uploads = Session.get().getMetaData(SESSION_UPLOADS);
+		return uploads != null && uploads.contains(uploadFieldId);
+	}
+
+	/**
+	 * Remembers that the session of the current request stores uploads under an upload field ID,
+	 * see {@link #isStoredBySession(String)}. Done by the methods storing without a tenant.
+	 *
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 */
+	public void rememberInSession(String uploadFieldId)
+	{
+		// a request without a bound session, e.g. an API upload, does not get one
+		if (!Session.exists() || Session.get().isTemporary())
+		{
+			return;
+		}
+		Session session = Session.get();
+		synchronized (session)
+		{
+			HashSet<String> uploads = session.getMetaData(SESSION_UPLOADS);
+			if (uploads == null || !uploads.contains(uploadFieldId))
+			{
+				// a copy, so that a replicated session never sees the set change
+				uploads = uploads != null ? new HashSet<>(uploads) : new HashSet<>();
+				uploads.add(uploadFieldId);
+				session.setMetaData(SESSION_UPLOADS, uploads);
+			}
+		}
+	}
+
+	@Override
+	public File getFile(String uploadFieldId, String clientFileName)
+	{
+		UploadCatalog.Entry entry = getEntry(uploadFieldId, clientFileName);
+		return entry != null ? new File(entry.getLocation().toFile()) : null;
+	}
+
+	/**
+	 * Looks up a stored upload, waiting for its pending write if there is one.
+	 *
+	 * @param uploadFieldId
+	 *            the unique ID of the upload field
+	 * @param clientFileName
+	 *            the client file name
+	 * @return the catalog entry, or {@code null} if there is no such upload
+	 */
+	UploadCatalog.Entry getEntry(String uploadFieldId, String clientFileName)
+	{
+		Path target = resolve(uploadFieldId, clientFileName);
+		CompletableFuture<Path> future = pending.get(target);
+		if (future != null)
+		{
+			try
+			{
+				future.join();
+			}
+			catch (CompletionException e)
+			{
+				// the write failed and was logged, there is nothing to return
+				return null;
+			}
+		}
+
+		UploadCatalog.Entry entry = catalog.get(uploadFieldId, clientFileName);
+		if (entry == null && Files.isRegularFile(target))
+		{
+			// evicted from (or never journaled in) the catalog, the layout tells where it is
+			File file = new File(target.toFile());
+			entry = new UploadCatalog.Entry(uploadFieldId, clientFileName, target, file.length(),
+				file.lastModified());
+			catalog.cache(entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Makes the queued saves durable and stops the workers.
+	 */
+	public void close()
+	{
+		writeBehind.close();
+		catalog.close();
+	}
+
+	private Path resolve(String uploadFieldId, String clientFileName)
+	{
+		Args.notEmpty(uploadFieldId, "uploadFieldId");
+		Args.notEmpty(clientFileName, "clientFileName");
+		// never let a client provided name escape its folder, nor two uploads share one; the
+		// folders of the storage itself start with a dot, files and folders of an upload may
+		if (uploadFieldId.startsWith("."))
+		{
+			throw new IllegalArgumentException("Illegal upload field ID: " + uploadFieldId);
+		}
+		Path path = getFolder().toPath().resolve(safeName(uploadFieldId));
+		for (String segment : Strings.split(clientFileName, '/'))
+		{
+			path = path.resolve(safeName(segment));
+		}
+		return path;
+	}
+
+	private static String safeName(String name)
+	{
+		// rejected rather than stripped: "a/b" and "b" must not end up in the same folder
+		if (name.isEmpty() || ".".equals(name) || "..".equals(name) || name.indexOf('/') >= 0 ||
+			name.indexOf('\\') >= 0 || !name.equals(String.valueOf(Path.of(name).getFileName())))
+		{
+			throw new IllegalArgumentException("Illegal upload name: " + name);
+		}
+		return name;
+	}
+}
@@ -21,7 +21,13 @@ import java.lang.management.ManagementFactory;
 import javax.management.MBeanServer;
 
 import org.apache.wicket.protocol.ws.javax.WicketServerEndpointConfig;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.AbstractHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
 import org.eclipse.jetty.jmx.MBeanContainer;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.SecureRequestCustomizer;
@@ -39,6 +45,10 @@ import org.eclipse.jetty.websocket.jakarta.server.config.JakartaWebSocketServlet
 /**
  * Separate startup class for people that want to run the examples directly. Use parameter
  * -Dcom.sun.management.jmxremote to startup JMX (and e.g. connect with jconsole).
+ * <p>
+ * Both connectors speak HTTP/2 next to HTTP/1.1: h2c on port 8080, negotiated with ALPN on port
+ * 8443. Use parameter -Djetty.http2=false to only serve HTTP/1.1, e.g. to compare the two with
+ * {@link UploadBenchmark}.
  */
 public class Start
 {
@@ -50,6 +60,7 @@ public class Start
 	public static void main(String[] args) throws Exception
 	{
 		System.setProperty("wicket.configuration", "development");
+		boolean http2 = Boolean.parseBoolean(System.getProperty("jetty.http2", "true"));
 
 		Server server = new Server();
 
@@ -58,7 +69,11 @@ public class Start
 		http_config.setSecurePort(8443);
 		http_config.setOutputBufferSize(32768);
 
-		ServerConnector http = new ServerConnector(server, new HttpConnectionFactory(http_config));
+		ConnectionFactory[] httpFactories = http2
+			? new ConnectionFactory[] { new HttpConnectionFactory(http_config),
+					configureFlowControl(new HTTP2CServerConnectionFactory(http_config)) }
+			: new ConnectionFactory[] { new HttpConnectionFactory(http_config) };
+		ServerConnector http = new ServerConnector(server, httpFactories);
 		http.setPort(8080);
 		http.setIdleTimeout(1000 * 60 * 60);
 
@@ -84,8 +99,23 @@ public class Start
 			src.setSniHostCheck(false);
 			https_config.addCustomizer(src);
 
-			ServerConnector https = new ServerConnector(server, new SslConnectionFactory(
-				sslContextFactory, "http/1.1"), new HttpConnectionFactory(https_config));
+			ServerConnector https;
+			if (http2)
+			{
+				// h2 where the client supports it, picked during the TLS handshake
+				HttpConnectionFactory http1 = new HttpConnectionFactory(https_config);
+				ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+				alpn.setDefaultProtocol(http1.getProtocol());
+				sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+				https = new ServerConnector(server,
+					new SslConnectionFactory(sslContextFactory, alpn.getProtocol()), alpn,
+					configureFlowControl(new HTTP2ServerConnectionFactory(https_config)), http1);
+			}
+			else
+			{
+				https = new ServerConnector(server, new SslConnectionFactory(
+					sslContextFactory, "http/1.1"), new HttpConnectionFactory(https_config));
+			}
 			https.setPort(8443);
 			https.setIdleTimeout(500000);
 
@@ -95,6 +125,10 @@ public class Start
 				.println("You can access the application using SSL on https://localhost:8443");
 			System.out.println();
 		}
+		if (http2)
+		{
+			System.out.println("HTTP/2 is enabled: h2c on port 8080, h2 on port 8443");
+		}
 
 		WebAppContext bb = new WebAppContext();
 		bb.setServer(server);
@@ -133,4 +167,18 @@ public class Start
 			System.exit(100);
 		}
 	}
+
+	/**
+	 * Opens the flow control windows far enough for uploads: with the defaults, 512KiB per stream
+	 * and 1MiB per connection, an upload stalls for a round trip whenever the window is used up,
+	 * and a few parallel uploads on the same connection already starve each other.
+	 */
+	private static AbstractHTTP2ServerConnectionFactory configureFlowControl(
+		AbstractHTTP2ServerConnectionFactory factory)
+	{
+		factory.setInitialStreamRecvWindow(8 * 1024 * 1024);
+		factory.setInitialSessionRecvWindow(32 * 1024 * 1024);
+		factory.setMaxConcurrentStreams(128);
+		return factory;
+	}
 }
@@ -0,0 +1,323 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.management.ObjectName;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ArchiveExtractionStage} and {@link TarReader}
+ */
+public class TestArchiveExtractionStage
+{
+	@TempDir
+	Path folder;
+
+	private WriteBehindUploadsFileManager fileManager;
+
+	private UploadPipeline pipeline;
+
+	private UploadFileItemFactory factory;
+
+	@BeforeEach
+	public void setUp()
+	{
+		fileManager = new WriteBehindUploadsFileManager(new File(folder.resolve("storage").toFile()),
+			UploadMetrics.get(), 4, 2, 3, 64);
+		pipeline = new UploadPipeline(1024, 2);
+		pipeline.add(new ArchiveExtractionStage(fileManager, 10, 16 * 1024 * 1024, 100));
+		factory = new UploadFileItemFactory(folder.toFile(), "upload", new UploadTracer("upload"), pipeline);
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		pipeline.close();
+		fileManager.close();
+	}
+
+	@Test
+	public void zipEntriesAreStoredWhileTheArchiveArrives() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes))
+		{
+			addZipEntry(zip, "readme.txt", "read me");
+			zip.putNextEntry(new ZipEntry("docs/"));
+			addZipEntry(zip, "docs/guide.txt", "guide");
+			addZipEntry(zip, "__MACOSX/._readme.txt", "resource fork");
+		}
+
+		FileItem item = spool("bundle.zip", bytes.toByteArray());
+		PartTee tee = factory.getTee(item);
+		Map<String, Object> results = tee.await();
+
+		assertNull(tee.getVeto());
+		assertTrue(tee.isConsuming());
+		assertEquals(0, item.getSize());
+		assertEquals(List.of("readme.txt", "docs/guide.txt"), results.get(ArchiveExtractionStage.NAME));
+		assertEquals("read me", Files.readString(fileManager.getFile("upload", "readme.txt").toPath()));
+		assertEquals("guide", Files.readString(fileManager.getFile("upload", "docs/guide.txt").toPath()));
+	}
+
+	@Test
+	public void tarEntriesAreStored() throws Exception
+	{
+		byte[] tar = tar("a.txt", "first", "folder/b.txt", "second".repeat(200));
+
+		Map<String, Object> results = factory.getTee(spool("bundle.tar", tar)).await();
+
+		assertEquals(List.of("a.txt", "folder/b.txt"), results.get(ArchiveExtractionStage.NAME));
+		assertEquals("second".repeat(200),
+			Files.readString(fileManager.getFile("upload", "folder/b.txt").toPath()));
+	}
+
+	@Test
+	public void gzippedTarEntriesAreStored() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream gzip = new GZIPOutputStream(bytes))
+		{
+			gzip.write(tar("c.txt", "third"));
+		}
+
+		Map<String, Object> results = factory.getTee(spool("bundle.tgz", bytes.toByteArray())).await();
+
+		assertEquals(List.of("c.txt"), results.get(ArchiveExtractionStage.NAME));
+		assertEquals("third", Files.readString(fileManager.getFile("upload", "c.txt").toPath()));
+	}
+
+	@Test
+	public void highlyCompressedArchivesAreVetoed() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes))
+		{
+			zip.putNextEntry(new ZipEntry("zeros.bin"));
+			zip.write(new byte[900 * 1024]);
+			zip.write(new byte[900 * 1024]);
+		}
+
+		PartTee tee = factory.getTee(spool("bomb.zip", bytes.toByteArray()));
+		tee.await();
+
+		assertTrue(tee.getVeto().getMessage().contains("compression ratio"));
+	}
+
+	@Test
+	public void skippedEntriesCountAgainstTheLimits() throws Exception
+	{
+		ByteArrayOutputStream hidden = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(hidden))
+		{
+			for (int i = 0; i < 11; i++)
+			{
+				addZipEntry(zip, "__MACOSX/._" + i, "fork");
+			}
+		}
+		PartTee tee = factory.getTee(spool("hidden.zip", hidden.toByteArray()));
+		tee.await();
+		assertTrue(tee.getVeto().getMessage().contains("entries"));
+
+		String[] entries = new String[22];
+		for (int i = 0; i < 11; i++)
+		{
+			entries[2 * i] = "folder" + i + "/";
+			entries[2 * i + 1] = "";
+		}
+		tee = factory.getTee(spool("folders.tar", tar(entries)));
+		tee.await();
+		assertTrue(tee.getVeto().getMessage().contains("entries"));
+	}
+
+	@Test
+	public void skippedBytesAreMetered() throws Exception
+	{
+		ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(zipBytes))
+		{
+			zip.putNextEntry(new ZipEntry("__MACOSX/._zeros"));
+			zip.write(new byte[4 * 1024 * 1024]);
+		}
+		PartTee tee = factory.getTee(spool("hidden-bomb.zip", zipBytes.toByteArray()));
+		tee.await();
+		assertTrue(tee.getVeto().getMessage().contains("compression ratio"));
+
+		ByteArrayOutputStream tgzBytes = new ByteArrayOutputStream();
+		try (OutputStream gzip = new GZIPOutputStream(tgzBytes))
+		{
+			gzip.write(tar(".hidden", "\0".repeat(4 * 1024 * 1024)));
+		}
+		tee = factory.getTee(spool("hidden-bomb.tgz", tgzBytes.toByteArray()));
+		tee.await();
+		assertTrue(tee.getVeto().getMessage().contains("compression ratio"));
+	}
+
+	@Test
+	public void entriesCannotEscapeTheirFolder() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes))
+		{
+			addZipEntry(zip, "../../evil.sh", "rm -rf");
+		}
+
+		PartTee tee = factory.getTee(spool("slip.zip", bytes.toByteArray()));
+		tee.await();
+
+		assertTrue(tee.getVeto().getMessage().contains("evil.sh"));
+	}
+
+	@Test
+	public void extractedEntriesBelongToTheUploadingSession() throws Exception
+	{
+		WicketTester tester = new WicketTester(new WicketApplication()
+		{
+			@Override
+			protected File getUploadsFolder()
+			{
+				return new File(folder.resolve("app-storage").toFile());
+			}
+
+			@Override
+			protected File getSpoolFolder()
+			{
+				return new File(folder.resolve("app-spool").toFile());
+			}
+		});
+		try
+		{
+			WicketApplication application = (WicketApplication)tester.getApplication();
+			UploadPipeline.get().add(new ArchiveExtractionStage(application.getUploadsFileManager()));
+			tester.getSession().bind();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ZipOutputStream zip = new ZipOutputStream(bytes))
+			{
+				addZipEntry(zip, "guide.txt", "guide");
+			}
+			Path archive = Files.write(folder.resolve("bundle.zip"), bytes.toByteArray());
+
+			MockHttpServletRequest request = tester.getRequest();
+			request.setMethod("POST");
+			request.setUseMultiPartContentType(true);
+			request.addFile("file", new File(archive.toFile()), "application/zip");
+			tester.executeUrl("file-upload?uploadId=bundle");
+			assertEquals(200, tester.getLastResponse().getStatus());
+
+			// the entries were stored by a thread of the stage, without a session
+			tester.executeUrl("file-download/bundle/guide.txt");
+			assertEquals(200, tester.getLastResponse().getStatus());
+			assertEquals("guide", tester.getLastResponse().getDocument());
+			assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+				new ObjectName("com.mycompany:type=UploadMetrics,application=" +
+					ObjectName.quote(application.getName())), "ExtractedEntries"));
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	@Test
+	public void storageNames()
+	{
+		assertEquals("a/b.txt", ArchiveExtractionStage.storageName("/a/./b.txt"));
+		assertEquals("a/b.txt", ArchiveExtractionStage.storageName("a\\b.txt"));
+		assertNull(ArchiveExtractionStage.storageName("a/.hidden"));
+		assertNull(ArchiveExtractionStage.storageName("/"));
+		assertThrows(UploadVetoException.class, () -> ArchiveExtractionStage.storageName("a/../../b"));
+	}
+
+	@Test
+	public void otherPartsAreNotExtracted()
+	{
+		FileItem item = factory.createItem("file", "text/plain", false, "notes.txt");
+
+		assertNull(factory.getTee(item));
+	}
+
+	private FileItem spool(String fileName, byte[] content) throws Exception
+	{
+		FileItem item = factory.createItem("file", "application/octet-stream", false, fileName);
+		try (OutputStream out = item.getOutputStream())
+		{
+			for (int off = 0; off < content.length; off += 100)
+			{
+				out.write(content, off, Math.min(100, content.length - off));
+			}
+		}
+		return item;
+	}
+
+	private static void addZipEntry(ZipOutputStream zip, String name, String content) throws Exception
+	{
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(content.getBytes(StandardCharsets.UTF_8));
+		zip.closeEntry();
+	}
+
+	/**
+	 * @return a ustar archive of name and content pairs, the names ending with / are folders
+	 */
+	private static byte[] tar(String... namesAndContents)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < namesAndContents.length; i += 2)
+		{
+			byte[] content = namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+			byte[] header = new byte[512];
+			put(header, 0, namesAndContents[i]);
+			put(header, 100, "0000644");
+			put(header, 108, "0000000");
+			put(header, 116, "0000000");
+			put(header, 124, String.format("%011o", content.length));
+			put(header, 136, String.format("%011o", 0));
+			header[156] = namesAndContents[i].endsWith("/") ? (byte)'5' : (byte)'0';
+			put(header, 257, "ustar");
+			put(header, 263, "00");
+			for (int j = 148; j < 156; j++)
+			{
+				header[j] = ' ';
+			}
+			long sum = 0;
+			for (byte b : header)
+			{
+				sum += b & 0xFF;
+			}
+			put(header, 148, String.format("%06o", sum));
+			header[154] = 0;
+			out.writeBytes(header);
+			out.writeBytes(content);
+			out.writeBytes(new byte[(512 - content.length % 512) % 512]);
+		}
+		out.writeBytes(new byte[1024]);
+		return out.toByteArray();
+	}
+
+	private static void put(byte[] header, int offset, String value)
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+}
@@ -0,0 +1,134 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link FairQueue}
+ */
+public class TestFairQueue
+{
+	@Test
+	public void tenantsShareByCostAndWeight() throws Exception
+	{
+		FairQueue<String> queue = new FairQueue<>(100);
+		for (int i = 0; i < 20; i++)
+		{
+			queue.put("bulk", 1, 1000, "bulk" + i);
+		}
+		for (int i = 0; i < 10; i++)
+		{
+			queue.put("small", 1, 100, "small" + i);
+		}
+		for (int i = 0; i < 10; i++)
+		{
+			queue.put("premium", 2, 1000, "premium" + i);
+		}
+
+		List<String> taken = new ArrayList<>();
+		queue.drainTo(taken, 12, 0, TimeUnit.MILLISECONDS);
+
+		// the small elements cost a tenth, premium has twice the share of bulk
+		assertEquals(10, count(taken, "small"));
+		assertEquals(1, count(taken, "premium"));
+		assertEquals(1, count(taken, "bulk"));
+
+		taken.clear();
+		queue.drainTo(taken, 9, 0, TimeUnit.MILLISECONDS);
+		assertEquals(6, count(taken, "premium"));
+		assertEquals(3, count(taken, "bulk"));
+	}
+
+	@Test
+	public void idleTenantsAreServedNextWithoutCredit() throws Exception
+	{
+		FairQueue<String> queue = new FairQueue<>(100);
+		for (int i = 0; i < 10; i++)
+		{
+			queue.put("bulk", 1, 1000, "bulk" + i);
+		}
+		List<String> taken = new ArrayList<>();
+		queue.drainTo(taken, 5, 0, TimeUnit.MILLISECONDS);
+
+		queue.put("late", 1, 1000, "late0");
+		queue.put("late", 1, 1000, "late1");
+		taken.clear();
+		queue.drainTo(taken, 4, 0, TimeUnit.MILLISECONDS);
+
+		assertEquals(List.of("bulk5", "late0", "bulk6", "late1"), taken);
+	}
+
+	@Test
+	public void putBlocksWhileTheQueueIsFull() throws Exception
+	{
+		FairQueue<String> queue = new FairQueue<>(2);
+		queue.put("a", 1, 1, "a0");
+		queue.put("a", 1, 1, "a1");
+
+		CountDownLatch queued = new CountDownLatch(1);
+		Thread producer = new Thread(() -> {
+			try
+			{
+				queue.put("b", 1, 1, "b0");
+				queued.countDown();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		});
+		producer.start();
+		assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+
+		List<String> taken = new ArrayList<>();
+		queue.drainTo(taken, 1, 0, TimeUnit.MILLISECONDS);
+		assertTrue(queued.await(5, TimeUnit.SECONDS));
+		producer.join();
+		assertEquals(2, queue.size());
+		assertEquals(0, new FairQueue<String>(1).drainTo(taken, 1, 10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void closedQueuesRefuseElementsButCanBeDrained() throws Exception
+	{
+		FairQueue<String> queue = new FairQueue<>(1);
+		queue.put("a", 1, 1, "a0");
+
+		Thread producer = new Thread(() -> {
+			try
+			{
+				queue.put("b", 1, 1, "b0");
+			}
+			catch (IllegalStateException | InterruptedException e)
+			{
+				// refused
+			}
+		});
+		producer.start();
+		queue.close();
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+
+		assertThrows(IllegalStateException.class, () -> queue.put("c", 1, 1, "c0"));
+		assertFalse(queue.isDrained());
+		List<String> taken = new ArrayList<>();
+		assertEquals(1, queue.drainTo(taken, 10, 0, TimeUnit.MILLISECONDS));
+		assertEquals(List.of("a0"), taken);
+		assertTrue(queue.isDrained());
+		// a closed queue does not make its consumers wait
+		assertEquals(0, queue.drainTo(taken, 10, 1, TimeUnit.MINUTES));
+	}
+
+	private static long count(List<String> taken, String tenant)
+	{
+		return taken.stream().filter(element -> element.startsWith(tenant)).count();
+	}
+}
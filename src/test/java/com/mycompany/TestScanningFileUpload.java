@@ -0,0 +1,210 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.FileUpload;
+import org.apache.tomcat.util.http.fileupload.FileUploadException;
+import org.apache.tomcat.util.http.fileupload.UploadContext;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItemFactory;
+import org.apache.tomcat.util.http.fileupload.impl.FileSizeLimitExceededException;
+import org.apache.tomcat.util.http.fileupload.impl.SizeLimitExceededException;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ScanningFileUpload}
+ */
+public class TestScanningFileUpload
+{
+	private static final String BOUNDARY = "----boundary7MA4YWxkTrZu0gW";
+
+	@TempDir
+	Path folder;
+
+	@Test
+	public void partsAreTheSameAsTomcatParses() throws Exception
+	{
+		byte[] large = new byte[3 * ScanningFileUpload.BUFFER_SIZE + 17];
+		new Random(7).nextBytes(large);
+		// bytes that look like the start of the delimiter
+		byte[] tricky = ("\r\n--" + BOUNDARY.substring(0, 10) + "\r\n-").getBytes(StandardCharsets.US_ASCII);
+		byte[] body = new Body()
+			.preamble("ignored preamble")
+			.field("title", "café")
+			.file("large", "large.bin", large)
+			.file("empty", "empty.txt", new byte[0])
+			.file("tricky", "tricky.txt", tricky)
+			.end();
+
+		List<FileItem> expected = parse(new FileUpload(), body, 1);
+		for (int chunk : new int[] { 1, 7, 4096, Integer.MAX_VALUE })
+		{
+			List<FileItem> actual = parse(new ScanningFileUpload(), body, chunk);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++)
+			{
+				FileItem e = expected.get(i);
+				FileItem a = actual.get(i);
+				assertEquals(e.getFieldName(), a.getFieldName());
+				assertEquals(e.getName(), a.getName());
+				assertEquals(e.getContentType(), a.getContentType());
+				assertEquals(e.isFormField(), a.isFormField());
+				assertArrayEquals(e.get(), a.get());
+				assertEquals(e.getHeaders().getHeader("content-disposition"),
+					a.getHeaders().getHeader("content-disposition"));
+			}
+		}
+		assertEquals("café", expected.get(0).getString("UTF-8"));
+	}
+
+	@Test
+	public void limitsAreEnforced()
+	{
+		byte[] body = new Body().file("file", "a.bin", new byte[1000]).end();
+
+		ScanningFileUpload fileSize = new ScanningFileUpload();
+		fileSize.setFileSizeMax(999);
+		FileSizeLimitExceededException e = assertThrows(FileSizeLimitExceededException.class,
+			() -> parse(fileSize, body, 100));
+		assertEquals("file", e.getFieldName());
+		assertEquals("a.bin", e.getFileName());
+
+		ScanningFileUpload size = new ScanningFileUpload();
+		size.setSizeMax(500);
+		assertThrows(SizeLimitExceededException.class, () -> parse(size, body, 100));
+	}
+
+	@Test
+	public void truncatedBodiesAreRejected()
+	{
+		byte[] body = new Body().file("file", "a.bin", new byte[1000]).end();
+		byte[] truncated = new byte[body.length - BOUNDARY.length()];
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+
+		assertThrows(FileUploadException.class, () -> parse(new ScanningFileUpload(), truncated, 64));
+		assertThrows(FileUploadException.class, () -> parse(new ScanningFileUpload(),
+			"no boundary here".getBytes(StandardCharsets.US_ASCII), 64));
+	}
+
+	@Test
+	public void requestsCanBeParsedWithTheScanningParser() throws Exception
+	{
+		WicketTester tester = new WicketTester(new WicketApplication());
+		try
+		{
+			Path file = Files.writeString(folder.resolve("small.txt"), "small");
+			MockHttpServletRequest request = tester.getRequest();
+			request.setMethod("POST");
+			request.setUseMultiPartContentType(true);
+			request.addFile("file", new org.apache.wicket.util.file.File(file.toFile()), "text/plain");
+			request.getPostParameters().setParameterValue("field", "value");
+
+			TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+				request, "", Bytes.megabytes(1), "up1");
+			multipartRequest.setUseScanningParser(true);
+			multipartRequest.parseFileParts();
+
+			assertEquals("small", multipartRequest.getFile("file").get(0).getString());
+			assertEquals("value", multipartRequest.getPostParameters().getParameterValue("field").toString());
+			assertNull(multipartRequest.getFile("field"));
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	private List<FileItem> parse(FileUpload upload, byte[] body, int chunk) throws FileUploadException
+	{
+		upload.setFileItemFactory(new DiskFileItemFactory(1024, folder.toFile()));
+		return upload.parseRequest(new UploadContext()
+		{
+			@Override
+			public String getCharacterEncoding()
+			{
+				return "UTF-8";
+			}
+
+			@Override
+			public String getContentType()
+			{
+				return "multipart/form-data; boundary=" + BOUNDARY;
+			}
+
+			@Override
+			public InputStream getInputStream()
+			{
+				return new FilterInputStream(new ByteArrayInputStream(body))
+				{
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException
+					{
+						return super.read(b, off, Math.min(len, chunk));
+					}
+				};
+			}
+
+			@Override
+			public long contentLength()
+			{
+				return body.length;
+			}
+		});
+	}
+
+	private static final class Body
+	{
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		private Body preamble(String preamble)
+		{
+			write(preamble + "\r\n");
+			return this;
+		}
+
+		private Body field(String name, String value)
+		{
+			write("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+			out.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+			write("\r\n");
+			return this;
+		}
+
+		private Body file(String name, String fileName, byte[] content)
+		{
+			write("--" + BOUNDARY + "\r\ncontent-disposition: form-data; name=\"" + name + "\";\r\n" +
+				"\tfilename=\"" + fileName + "\"\r\nContent-Type:  application/octet-stream \r\n\r\n");
+			out.writeBytes(content);
+			write("\r\n");
+			return this;
+		}
+
+		private byte[] end()
+		{
+			write("--" + BOUNDARY + "--\r\n");
+			return out.toByteArray();
+		}
+
+		private void write(String text)
+		{
+			out.writeBytes(text.getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.github.openjson.JSONObject;
+import jakarta.servlet.http.HttpSession;
+
+/**
+ * Tests for {@link StatelessUploadResource} and {@link UploadProgressResource}
+ */
+public class TestStatelessUploadResource
+{
+	@TempDir
+	Path folder;
+
+	private WicketTester tester;
+
+	private WicketApplication application;
+
+	@BeforeEach
+	public void setUp()
+	{
+		application = new WicketApplication()
+		{
+			@Override
+			protected File getUploadsFolder()
+			{
+				return new File(folder.resolve("storage").toFile());
+			}
+		};
+		tester = new WicketTester(application);
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		tester.destroy();
+	}
+
+	@Test
+	public void uploadsNeedAValidToken() throws Exception
+	{
+		prepareUpload("report.txt", "report");
+		tester.getRequest().addHeader(StatelessUploadResource.TOKEN_HEADER, "forged.1.AAAA");
+		tester.executeUrl("api/upload");
+
+		assertEquals(401, tester.getLastResponse().getStatus());
+	}
+
+	@Test
+	public void uploadIsSavedUnderTheUploadIdOfTheToken() throws Exception
+	{
+		String token = application.getUploadTokens().issue("batch-1");
+
+		prepareUpload("report.txt", "report");
+		tester.getRequest().setHeader(StatelessUploadResource.TOKEN_HEADER, token);
+		tester.executeUrl("api/upload");
+
+		MockHttpServletResponse response = tester.getLastResponse();
+		assertEquals(200, response.getStatus());
+		JSONObject json = new JSONObject(response.getDocument());
+		assertEquals("batch-1", json.getString("uploadId"));
+		assertEquals("report.txt", json.getJSONArray("files").getJSONObject(0).getString("clientFileName"));
+		File stored = application.getUploadsFileManager().getFile("batch-1", "report.txt");
+		assertEquals("report", Files.readString(stored.toPath()));
+
+		tester.getRequest().setHeader(StatelessUploadResource.TOKEN_HEADER, token);
+		tester.executeUrl("api/upload-progress");
+		JSONObject progress = new JSONObject(tester.getLastResponse().getDocument());
+		assertTrue(progress.getBoolean("completed"));
+		assertEquals(0, progress.getInt("currentItem"));
+	}
+
+	@Test
+	public void queryTokensAreOptInAndShortLived() throws Exception
+	{
+		UploadTokens tokens = application.getUploadTokens();
+
+		prepareUpload("a.txt", "a");
+		tester.executeUrl("api/upload?token=" + tokens.issue("query-1", Duration.ofSeconds(30)));
+		assertEquals(401, tester.getLastResponse().getStatus());
+
+		tokens.setQueryTimeToLive(Duration.ofMinutes(1));
+		prepareUpload("a.txt", "a");
+		tester.executeUrl("api/upload?token=" + tokens.issue("query-1"));
+		assertEquals(401, tester.getLastResponse().getStatus());
+
+		prepareUpload("a.txt", "a");
+		tester.executeUrl("api/upload?token=" + tokens.issue("query-1", Duration.ofSeconds(30)));
+		assertEquals(200, tester.getLastResponse().getStatus());
+	}
+
+	@Test
+	public void tokensCannotBeReplayed() throws Exception
+	{
+		String token = application.getUploadTokens().issue("batch-2");
+		prepareUpload("a.txt", "a");
+		tester.getRequest().setHeader(StatelessUploadResource.TOKEN_HEADER, token);
+		tester.executeUrl("api/upload");
+		assertEquals(200, tester.getLastResponse().getStatus());
+
+		prepareUpload("b.txt", "b");
+		tester.getRequest().setHeader(StatelessUploadResource.TOKEN_HEADER, token);
+		tester.executeUrl("api/upload");
+
+		assertEquals(409, tester.getLastResponse().getStatus());
+	}
+
+	@Test
+	public void progressIsTrackedWithoutASession() throws Exception
+	{
+		UploadProgressRegistry registry = new UploadProgressRegistry(Duration.ofMinutes(1));
+		StatelessUploadResource resource = new StatelessUploadResource(
+			application.getUploadsFileManager(), application.getUploadTokens(), registry,
+			Bytes.megabytes(1));
+		MockHttpServletRequest request = new MockHttpServletRequest(application,
+			tester.getHttpSession(), tester.getServletContext())
+		{
+			@Override
+			public HttpSession getSession()
+			{
+				throw new AssertionError("The session must not be used");
+			}
+
+			@Override
+			public HttpSession getSession(boolean create)
+			{
+				throw new AssertionError("The session must not be used");
+			}
+		};
+		request.setMethod("POST");
+		request.setUseMultiPartContentType(true);
+		request.addFile("file", upload("c.txt", "c"), "text/plain");
+
+		assertTrue(registry.claim("batch-3", request.getContentLengthLong()));
+		TomcatMultipartServletWebRequestImpl multipartRequest = resource.newMultipartRequest(
+			new ServletWebRequest(request, ""), "batch-3");
+		multipartRequest.parseFileParts();
+
+		assertNotNull(registry.get("batch-3"));
+		assertTrue(registry.isCompleted("batch-3"));
+		assertEquals(1, multipartRequest.getFiles().size());
+	}
+
+	@Test
+	public void uploadsWithoutContentLengthAreParsed() throws Exception
+	{
+		// HTTP/2 streams need not announce their length
+		UploadProgressRegistry registry = new UploadProgressRegistry(Duration.ofMinutes(1));
+		StatelessUploadResource resource = new StatelessUploadResource(
+			application.getUploadsFileManager(), application.getUploadTokens(), registry,
+			Bytes.megabytes(1));
+		MockHttpServletRequest request = new MockHttpServletRequest(application,
+			tester.getHttpSession(), tester.getServletContext())
+		{
+			@Override
+			public int getContentLength()
+			{
+				return -1;
+			}
+		};
+		request.setMethod("POST");
+		request.setUseMultiPartContentType(true);
+		request.addFile("file", upload("d.txt", "d"), "text/plain");
+
+		assertTrue(registry.claim("batch-4", request.getContentLengthLong()));
+		TomcatMultipartServletWebRequestImpl multipartRequest = resource.newMultipartRequest(
+			new ServletWebRequest(request, ""), "batch-4");
+		multipartRequest.parseFileParts();
+
+		assertEquals(0, registry.get("batch-4").getTotalBytes());
+		assertEquals("d", multipartRequest.getFile("file").get(0).getString());
+	}
+
+	private void prepareUpload(String name, String content) throws Exception
+	{
+		MockHttpServletRequest request = tester.getRequest();
+		request.setMethod("POST");
+		request.setUseMultiPartContentType(true);
+		request.addFile("file", upload(name, content), "text/plain");
+	}
+
+	private File upload(String name, String content) throws Exception
+	{
+		Path file = folder.resolve(name);
+		Files.writeString(file, content);
+		return new File(file.toFile());
+	}
+}
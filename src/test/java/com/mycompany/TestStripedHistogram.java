@@ -0,0 +1,59 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link StripedHistogram}
+ */
+public class TestStripedHistogram
+{
+	@Test
+	public void percentilesStayWithinBucketPrecision()
+	{
+		StripedHistogram histogram = new StripedHistogram();
+		for (long i = 1; i <= 100_000; i++)
+		{
+			histogram.record(i);
+		}
+
+		assertEquals(100_000, histogram.getCount());
+		assertEquals(100_000, histogram.getMax());
+		assertEquals(50_000.5d, histogram.getMean(), 0.001d);
+		assertWithin(50_000, histogram.getP50());
+		assertWithin(99_000, histogram.getP99());
+		assertWithin(99_900, histogram.getP999());
+	}
+
+	@Test
+	public void smallValuesAreExact()
+	{
+		StripedHistogram histogram = new StripedHistogram();
+		histogram.record(3);
+		histogram.record(7);
+		histogram.record(-1);
+
+		assertEquals(3, histogram.getP50());
+		assertEquals(7, histogram.getPercentile(100));
+		assertEquals(0, histogram.getPercentile(0));
+	}
+
+	@Test
+	public void resetClearsEverything()
+	{
+		StripedHistogram histogram = new StripedHistogram();
+		histogram.record(42);
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getP99());
+	}
+
+	private static void assertWithin(long expected, long actual)
+	{
+		assertTrue(Math.abs(actual - expected) <= expected / 16, "expected ~" + expected + " but was " + actual);
+	}
+}
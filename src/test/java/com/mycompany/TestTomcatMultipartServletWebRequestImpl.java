@@ -0,0 +1,260 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.catalina.core.ApplicationPart;
+import org.apache.commons.fileupload2.core.FileItem;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItem;
+import org.apache.tomcat.util.http.fileupload.util.FileItemHeadersImpl;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+
+/**
+ * Tests how {@link TomcatMultipartServletWebRequestImpl} tells a body the container already
+ * parsed from one it has to parse itself
+ */
+public class TestTomcatMultipartServletWebRequestImpl
+{
+	@TempDir
+	Path folder;
+
+	private WicketTester tester;
+
+	@BeforeEach
+	public void setUp()
+	{
+		tester = new WicketTester(new WicketApplication()
+		{
+			@Override
+			protected File getUploadsFolder()
+			{
+				return new File(folder.resolve("storage").toFile());
+			}
+
+			@Override
+			protected File getSpoolFolder()
+			{
+				return new File(folder.resolve("spool").toFile());
+			}
+		});
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		tester.destroy();
+	}
+
+	@Test
+	public void consumedBodiesAreAdopted() throws Exception
+	{
+		byte[] content = new byte[10_000];
+		content[0] = 42;
+		BodyRequest request = new BodyRequest(body(content), true);
+		request.setContentLength(request.body.length);
+		request.setPart("file", part(content));
+		UploadMetrics metrics = UploadMetrics.get();
+		long adopted = metrics.getAdoptedUploads();
+		int spooled = UploadSpool.get().getTrackedFiles();
+
+		TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+			request, "", Bytes.megabytes(1), "up1");
+		multipartRequest.parseFileParts();
+
+		assertEquals(adopted + 1, metrics.getAdoptedUploads());
+		// the container's spool file is used, nothing is spooled a second time
+		assertEquals(spooled, UploadSpool.get().getTrackedFiles());
+		assertFile(content, multipartRequest);
+	}
+
+	@Test
+	public void unreadBodiesAreParsed() throws Exception
+	{
+		assertParsed(false);
+	}
+
+	@Test
+	public void unreadBodiesOfUnknownLengthAreParsed() throws Exception
+	{
+		// chunked, or HTTP/2 without a content-length
+		assertParsed(true);
+	}
+
+	private void assertParsed(boolean unknownLength) throws Exception
+	{
+		byte[] content = new byte[10_000];
+		content[0] = 42;
+		BodyRequest request = new BodyRequest(body(content), false);
+		request.setContentLength(unknownLength ? -1 : request.body.length);
+		UploadMetrics metrics = UploadMetrics.get();
+		long adopted = metrics.getAdoptedUploads();
+		long uploads = metrics.getUploads();
+
+		TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+			request, "", Bytes.megabytes(1), "up1");
+		multipartRequest.parseFileParts();
+
+		assertEquals(adopted, metrics.getAdoptedUploads());
+		assertEquals(uploads + 1, metrics.getUploads());
+		assertFile(content, multipartRequest);
+	}
+
+	private static void assertFile(byte[] content, TomcatMultipartServletWebRequestImpl multipartRequest)
+		throws Exception
+	{
+		FileItem item = multipartRequest.getFile("file").get(0);
+		assertEquals("a.bin", item.getName());
+		try (InputStream in = item.getInputStream())
+		{
+			assertArrayEquals(content, in.readAllBytes());
+		}
+	}
+
+	/**
+	 * @return a multipart body with one file
+	 */
+	private Body body(byte[] content) throws Exception
+	{
+		MockHttpServletRequest request = new MockHttpServletRequest(tester.getApplication(),
+			tester.getHttpSession(), tester.getServletContext());
+		request.setMethod("POST");
+		request.setUseMultiPartContentType(true);
+		request.addFile("file", new File(Files.write(folder.resolve("a.bin"), content).toFile()),
+			"application/octet-stream");
+		try (InputStream in = request.getInputStream())
+		{
+			return new Body(in.readAllBytes(), request.getContentType());
+		}
+	}
+
+	/**
+	 * @return the part the container made of the file
+	 */
+	private ApplicationPart part(byte[] content) throws Exception
+	{
+		DiskFileItem item = new DiskFileItem("file", "application/octet-stream", false, "a.bin", 1024,
+			folder.toFile());
+		FileItemHeadersImpl headers = new FileItemHeadersImpl();
+		headers.addHeader("content-disposition", "form-data; name=\"file\"; filename=\"a.bin\"");
+		item.setHeaders(headers);
+		try (OutputStream out = item.getOutputStream())
+		{
+			out.write(content);
+		}
+		return new ApplicationPart(item, folder.toFile());
+	}
+
+	private static final class Body
+	{
+		private final byte[] bytes;
+
+		private final String contentType;
+
+		private Body(byte[] bytes, String contentType)
+		{
+			this.bytes = bytes;
+			this.contentType = contentType;
+		}
+	}
+
+	/**
+	 * Serves a body like Tomcat does: its stream is finished once everything has been read.
+	 */
+	private final class BodyRequest extends MockHttpServletRequest
+	{
+		private final byte[] body;
+
+		private final String contentType;
+
+		private final ByteArrayInputStream in;
+
+		private long contentLength;
+
+		private BodyRequest(Body body, boolean consumed)
+		{
+			super(tester.getApplication(), tester.getHttpSession(), tester.getServletContext());
+			this.body = body.bytes;
+			this.contentType = body.contentType;
+			in = new ByteArrayInputStream(body.bytes);
+			if (consumed)
+			{
+				in.skip(body.bytes.length);
+			}
+			setMethod("POST");
+		}
+
+		private void setContentLength(long contentLength)
+		{
+			this.contentLength = contentLength;
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return contentType;
+		}
+
+		@Override
+		public int getContentLength()
+		{
+			return (int)contentLength;
+		}
+
+		@Override
+		public long getContentLengthLong()
+		{
+			return contentLength;
+		}
+
+		@Override
+		public ServletInputStream getInputStream()
+		{
+			return new ServletInputStream()
+			{
+				@Override
+				public boolean isFinished()
+				{
+					return in.available() == 0;
+				}
+
+				@Override
+				public boolean isReady()
+				{
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener)
+				{
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public int read()
+				{
+					return in.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len)
+				{
+					return in.read(b, off, len);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,495 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.Part;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import org.apache.commons.fileupload2.core.FileItem;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.markup.html.form.upload.FileUploadField;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.tester.FormTester;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Keeps the allocations of {@link TomcatMultipartServletWebRequestImpl#parseFileParts()}, and of
+ * a whole form submit through the {@link WicketTester}, within recorded budgets. The bytes
+ * allocated by the test thread are counted with {@link com.sun.management.ThreadMXBean}; each case
+ * is the least of a few runs, after a warm-up, so class loading and the first compilations do not
+ * count. Raise a budget only when the extra allocations are intended.
+ */
+public class TestUploadAllocations
+{
+	/** the most bytes Tomcat's parser may allocate for one field and a file of 1MiB */
+	private static final long TOMCAT_PER_UPLOAD = 192 * 1024;
+
+	/** the most bytes Tomcat's parser may allocate for each further MiB, progress updates included */
+	private static final long TOMCAT_PER_MIB = 64 * 1024;
+
+	/** the most bytes Tomcat's parser may allocate for each further small part */
+	private static final long TOMCAT_PER_PART = 28 * 1024;
+
+	/** the most bytes {@link ScanningFileUpload} may allocate for one field and a file of 1MiB */
+	private static final long SCANNING_PER_UPLOAD = 48 * 1024;
+
+	/** the most bytes {@link ScanningFileUpload} may allocate for each further MiB */
+	private static final long SCANNING_PER_MIB = 4 * 1024;
+
+	/** the most bytes {@link ScanningFileUpload} may allocate for each further small part */
+	private static final long SCANNING_PER_PART = 12 * 1024;
+
+	/** the most bytes that may be allocated for each further part adopted from the container */
+	private static final long ADOPTED_PER_PART = 512;
+
+	/**
+	 * the most bytes a form submitted with a file of 1KiB may allocate, the request cycle, the
+	 * progress callbacks and the rendering of the page included
+	 */
+	private static final long FORM_SUBMIT = 320 * 1024;
+
+	private static final int RUNS = 5;
+
+	@TempDir
+	Path folder;
+
+	private WicketTester tester;
+
+	private com.sun.management.ThreadMXBean threads;
+
+	@BeforeEach
+	public void setUp()
+	{
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		tester = new WicketTester(new WicketApplication()
+		{
+			@Override
+			protected File getUploadsFolder()
+			{
+				return new File(folder.resolve("storage").toFile());
+			}
+
+			@Override
+			protected File getSpoolFolder()
+			{
+				return new File(folder.resolve("spool").toFile());
+			}
+		});
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		if (tester != null)
+		{
+			tester.destroy();
+		}
+	}
+
+	@Test
+	public void tomcatUploadsAllocateWithinTheirBudget() throws Exception
+	{
+		assertUploadsWithinBudget(false, TOMCAT_PER_UPLOAD, TOMCAT_PER_MIB);
+	}
+
+	@Test
+	public void scanningUploadsAllocateWithinTheirBudget() throws Exception
+	{
+		assertUploadsWithinBudget(true, SCANNING_PER_UPLOAD, SCANNING_PER_MIB);
+	}
+
+	@Test
+	public void tomcatPartsAllocateWithinTheirBudget() throws Exception
+	{
+		assertPartsWithinBudget(false, TOMCAT_PER_PART);
+	}
+
+	@Test
+	public void scanningPartsAllocateWithinTheirBudget() throws Exception
+	{
+		assertPartsWithinBudget(true, SCANNING_PER_PART);
+	}
+
+	@Test
+	public void adoptedPartsAllocateWithinTheirBudget() throws Exception
+	{
+		long few = measureAdopted(10);
+		long many = measureAdopted(60);
+
+		long perPart = (many - few) / 50;
+		assertTrue(perPart <= ADOPTED_PER_PART,
+			perPart + " bytes allocated per adopted part, the budget is " + ADOPTED_PER_PART);
+	}
+
+	@Test
+	public void formSubmitsAllocateWithinTheirBudget() throws Exception
+	{
+		File file = new File(Files.write(folder.resolve("form.bin"), new byte[1024]).toFile());
+		UploadMetrics metrics = UploadMetrics.get();
+		tester.startPage(UploadPage.class);
+
+		long least = Long.MAX_VALUE;
+		for (int run = -RUNS; run < RUNS; run++)
+		{
+			long uploads = metrics.getUploads();
+			FormTester form = tester.newFormTester("form");
+			form.setFile("file", file, "application/octet-stream");
+
+			long before = threads.getCurrentThreadAllocatedBytes();
+			form.submit();
+			long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+			tester.assertNoErrorMessage();
+			assertEquals(1024, ((UploadPage)tester.getLastRenderedPage()).received);
+			assertEquals(uploads + 1, metrics.getUploads());
+			if (run >= 0)
+			{
+				least = Math.min(least, allocated);
+			}
+		}
+		assertTrue(least <= FORM_SUBMIT, least + " bytes allocated for a form submit, the budget is " + FORM_SUBMIT);
+	}
+
+	private void assertUploadsWithinBudget(boolean scanning, long perUpload, long perMib) throws Exception
+	{
+		long small = measure(body(1, 1024 * 1024), scanning);
+		long large = measure(body(1, 16 * 1024 * 1024), scanning);
+
+		assertTrue(small <= perUpload, small + " bytes allocated for one upload, the budget is " + perUpload);
+		long actualPerMib = (large - small) / 15;
+		assertTrue(actualPerMib <= perMib, actualPerMib + " bytes allocated per MiB, the budget is " + perMib);
+	}
+
+	private void assertPartsWithinBudget(boolean scanning, long perPart) throws Exception
+	{
+		long few = measure(body(10, 0), scanning);
+		long many = measure(body(60, 0), scanning);
+
+		long actualPerPart = (many - few) / 50;
+		assertTrue(actualPerPart <= perPart, actualPerPart + " bytes allocated per part, the budget is " + perPart);
+	}
+
+	/**
+	 * @return the least bytes allocated by parsing the body
+	 */
+	private long measure(Body body, boolean scanning) throws Exception
+	{
+		long least = Long.MAX_VALUE;
+		for (int run = -RUNS; run < RUNS; run++)
+		{
+			TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+				new ReplayedRequest(body), "", Bytes.megabytes(64), "up1");
+			multipartRequest.setUseScanningParser(scanning);
+
+			long before = threads.getCurrentThreadAllocatedBytes();
+			multipartRequest.parseFileParts();
+			long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+			assertEquals(body.files, multipartRequest.getFiles().size());
+			release(multipartRequest);
+			if (run >= 0)
+			{
+				least = Math.min(least, allocated);
+			}
+		}
+		return least;
+	}
+
+	/**
+	 * @return the least bytes allocated by adopting the parts
+	 */
+	private long measureAdopted(int count) throws Exception
+	{
+		long least = Long.MAX_VALUE;
+		for (int run = -RUNS; run < RUNS; run++)
+		{
+			MockHttpServletRequest request = new ReplayedRequest(body(0, 0));
+			for (int i = 0; i < count; i++)
+			{
+				request.setPart("file" + i, new InMemoryPart("file" + i, "file" + i + ".txt", new byte[100]));
+			}
+			TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+				request, "", Bytes.megabytes(64), "up1");
+
+			long before = threads.getCurrentThreadAllocatedBytes();
+			multipartRequest.parseFileParts();
+			long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+			assertEquals(count, multipartRequest.getFiles().size());
+			release(multipartRequest);
+			if (run >= 0)
+			{
+				least = Math.min(least, allocated);
+			}
+		}
+		return least;
+	}
+
+	private static void release(TomcatMultipartServletWebRequestImpl multipartRequest)
+	{
+		for (List<FileItem> items : multipartRequest.getFiles().values())
+		{
+			for (FileItem item : items)
+			{
+				try
+				{
+					item.delete();
+				}
+				catch (IOException e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a body with one field, and a file of {@code size} bytes or {@code count} small files.
+	 */
+	private Body body(int count, int size) throws IOException
+	{
+		MockHttpServletRequest request = new MockHttpServletRequest(tester.getApplication(),
+			tester.getHttpSession(), tester.getServletContext());
+		request.setMethod("POST");
+		request.setUseMultiPartContentType(true);
+		request.getPostParameters().setParameterValue("field", "value");
+		for (int i = 0; i < count; i++)
+		{
+			Path file = folder.resolve("upload" + i + ".bin");
+			Files.write(file, new byte[count == 1 ? size : 100]);
+			request.addFile("file" + i, new File(file.toFile()), "application/octet-stream");
+		}
+		try (InputStream in = request.getInputStream())
+		{
+			return new Body(in.readAllBytes(), request.getContentType(), count);
+		}
+	}
+
+	private static final class Body
+	{
+		private final byte[] bytes;
+
+		private final String contentType;
+
+		private final int files;
+
+		private Body(byte[] bytes, String contentType, int files)
+		{
+			this.bytes = bytes;
+			this.contentType = contentType;
+			this.files = files;
+		}
+	}
+
+	/**
+	 * Serves a body built beforehand, so building it is not counted. A body without files plays
+	 * one the container has already read.
+	 */
+	private final class ReplayedRequest extends MockHttpServletRequest
+	{
+		private final Body body;
+
+		private final ByteArrayInputStream in;
+
+		private ReplayedRequest(Body body)
+		{
+			super(tester.getApplication(), tester.getHttpSession(), tester.getServletContext());
+			this.body = body;
+			in = new ByteArrayInputStream(body.bytes);
+			if (body.files == 0)
+			{
+				in.skip(body.bytes.length);
+			}
+			setMethod("POST");
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return body.contentType;
+		}
+
+		@Override
+		public int getContentLength()
+		{
+			return body.bytes.length;
+		}
+
+		@Override
+		public long getContentLengthLong()
+		{
+			return body.bytes.length;
+		}
+
+		@Override
+		public ServletInputStream getInputStream()
+		{
+			return new ServletInputStream()
+			{
+				@Override
+				public boolean isFinished()
+				{
+					return in.available() == 0;
+				}
+
+				@Override
+				public boolean isReady()
+				{
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener)
+				{
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public int read()
+				{
+					return in.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len)
+				{
+					return in.read(b, off, len);
+				}
+			};
+		}
+	}
+
+	private static final class InMemoryPart implements Part
+	{
+		private final String name;
+
+		private final String fileName;
+
+		private final byte[] content;
+
+		private InMemoryPart(String name, String fileName, byte[] content)
+		{
+			this.name = name;
+			this.fileName = fileName;
+			this.content = content;
+		}
+
+		@Override
+		public InputStream getInputStream()
+		{
+			return new ByteArrayInputStream(content);
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return "application/octet-stream";
+		}
+
+		@Override
+		public String getName()
+		{
+			return name;
+		}
+
+		@Override
+		public String getSubmittedFileName()
+		{
+			return fileName;
+		}
+
+		@Override
+		public long getSize()
+		{
+			return content.length;
+		}
+
+		@Override
+		public void write(String fileName) throws IOException
+		{
+			Files.write(Path.of(fileName), content);
+		}
+
+		@Override
+		public void delete()
+		{
+		}
+
+		@Override
+		public String getHeader(String name)
+		{
+			return null;
+		}
+
+		@Override
+		public Collection<String> getHeaders(String name)
+		{
+			return List.of();
+		}
+
+		@Override
+		public Collection<String> getHeaderNames()
+		{
+			return List.of();
+		}
+	}
+
+	/**
+	 * A page with a plain form upload, parsed by {@link TomcatMultipartServletWebRequestImpl}.
+	 */
+	public static class UploadPage extends WebPage implements IMarkupResourceStreamProvider
+	{
+		private static final long serialVersionUID = 1L;
+
+		private long received;
+
+		public UploadPage()
+		{
+			FileUploadField file = new FileUploadField("file");
+			Form<Void> form = new Form<>("form")
+			{
+				@Override
+				protected void onSubmit()
+				{
+					// the field deletes the upload when it is detached
+					received = file.getFileUpload().getSize();
+				}
+			};
+			form.setMultiPart(true);
+			form.add(file);
+			add(form);
+		}
+
+		@Override
+		public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass)
+		{
+			return new StringResourceStream(
+				"<html><body><form wicket:id=\"form\"><input type=\"file\" wicket:id=\"file\"/></form></body></html>");
+		}
+	}
+}
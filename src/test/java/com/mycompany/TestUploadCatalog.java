@@ -0,0 +1,109 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link UploadCatalog}
+ */
+public class TestUploadCatalog
+{
+	@TempDir
+	Path folder;
+
+	@Test
+	public void journaledEntriesSurviveARestart() throws IOException
+	{
+		Path journal = folder.resolve("journal");
+		UploadCatalog catalog = new UploadCatalog(journal, 64);
+		catalog.addAll(List.of(entry("a"), entry("b")));
+		catalog.close();
+
+		catalog = new UploadCatalog(journal, 64);
+		UploadCatalog.Entry entry = catalog.get("field", "b");
+
+		assertNotNull(entry);
+		assertEquals(folder.resolve("b"), entry.getLocation());
+		assertEquals(1, entry.getSize());
+		catalog.close();
+	}
+
+	@Test
+	public void tornTailIsTruncated() throws IOException
+	{
+		Path journal = folder.resolve("journal");
+		UploadCatalog catalog = new UploadCatalog(journal, 64);
+		catalog.addAll(List.of(entry("a")));
+		catalog.addAll(List.of(entry("b")));
+		catalog.close();
+		long size = Files.size(journal);
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE))
+		{
+			channel.truncate(size - 3);
+		}
+
+		catalog = new UploadCatalog(journal, 64);
+
+		assertNotNull(catalog.get("field", "a"));
+		assertNull(catalog.get("field", "b"));
+		catalog.addAll(List.of(entry("c")));
+		catalog.close();
+		catalog = new UploadCatalog(journal, 64);
+		assertNotNull(catalog.get("field", "c"));
+		catalog.close();
+	}
+
+	@Test
+	public void residencyIsBoundedAndJournalIsCompacted() throws IOException
+	{
+		Path journal = folder.resolve("journal");
+		UploadCatalog catalog = new UploadCatalog(journal, 16);
+		List<UploadCatalog.Entry> entries = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+		{
+			entries.add(entry("file" + i));
+		}
+		for (UploadCatalog.Entry entry : entries)
+		{
+			catalog.addAll(List.of(entry));
+		}
+
+		int resident = 0;
+		for (int i = 0; i < 1000; i++)
+		{
+			resident += catalog.get("field", "file" + i) != null ? 1 : 0;
+		}
+		assertTrue(resident <= 16, "resident: " + resident);
+		assertTrue(Files.size(journal) < 100 * 40, "journal: " + Files.size(journal));
+		catalog.close();
+	}
+
+	@Test
+	public void namesWithSlashesDoNotCollide() throws IOException
+	{
+		UploadCatalog catalog = new UploadCatalog(folder.resolve("journal"), 64);
+		catalog.addAll(List.of(new UploadCatalog.Entry("a/b", "c", folder.resolve("1"), 1, 0),
+			new UploadCatalog.Entry("a", "b/c", folder.resolve("2"), 2, 0)));
+
+		assertEquals(folder.resolve("1"), catalog.get("a/b", "c").getLocation());
+		assertEquals(folder.resolve("2"), catalog.get("a", "b/c").getLocation());
+		catalog.close();
+	}
+
+	private UploadCatalog.Entry entry(String name)
+	{
+		return new UploadCatalog.Entry("field", name, folder.resolve(name), 1, 0);
+	}
+}
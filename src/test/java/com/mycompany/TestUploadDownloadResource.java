@@ -0,0 +1,222 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.commons.fileupload2.core.DiskFileItem;
+import org.apache.wicket.markup.html.form.upload.FileUpload;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link UploadDownloadResource}
+ */
+public class TestUploadDownloadResource
+{
+	@TempDir
+	Path folder;
+
+	private WicketTester tester;
+
+	@BeforeEach
+	public void setUp() throws Exception
+	{
+		tester = new WicketTester(new WicketApplication()
+		{
+			@Override
+			protected File getUploadsFolder()
+			{
+				return new File(folder.toFile());
+			}
+		});
+		// the uploads are served to the session that saved them
+		tester.getSession().bind();
+		WicketApplication application = (WicketApplication)tester.getApplication();
+		application.getUploadsFileManager().saveAsync(upload("digits.txt", "0123456789"), "field").join();
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		tester.destroy();
+	}
+
+	@Test
+	public void wholeFile()
+	{
+		MockHttpServletResponse response = download();
+
+		assertEquals(200, response.getStatus());
+		assertEquals("bytes", response.getHeader("Accept-Ranges"));
+		assertEquals("0123456789", response.getDocument());
+		assertEquals("nosniff", response.getHeader("X-Content-Type-Options"));
+		assertEquals("sandbox", response.getHeader("Content-Security-Policy"));
+		assertTrue(response.getHeader("Content-Disposition").startsWith("inline;"));
+	}
+
+	@Test
+	public void scriptableTypesAreAttachments() throws Exception
+	{
+		WicketApplication application = (WicketApplication)tester.getApplication();
+		application.getUploadsFileManager().saveAsync(upload("page.html", "<script>alert(1)</script>"), "field")
+			.join();
+
+		tester.executeUrl("file-download/field/page.html");
+		MockHttpServletResponse response = tester.getLastResponse();
+
+		assertEquals(200, response.getStatus());
+		assertTrue(response.getHeader("Content-Disposition").startsWith("attachment;"));
+		assertEquals("nosniff", response.getHeader("X-Content-Type-Options"));
+		assertEquals("sandbox", response.getHeader("Content-Security-Policy"));
+	}
+
+	@Test
+	public void fileNamesAreEncodedForTheHeader() throws Exception
+	{
+		WicketApplication application = (WicketApplication)tester.getApplication();
+		application.getUploadsFileManager().saveAsync(upload("say \"hi\".txt", "hi"), "field").join();
+
+		tester.executeUrl("file-download/field/say%20%22hi%22.txt");
+
+		assertEquals("inline; filename=\"say _hi_.txt\"; filename*=UTF-8''say%20%22hi%22.txt",
+			tester.getLastResponse().getHeader("Content-Disposition"));
+		assertEquals("attachment; filename=\"r_sum_ a_b.pdf\"; filename*=UTF-8''r%C3%A9sum%C3%A9%20a%5Cb.pdf",
+			UploadDownloadResource.contentDisposition("attachment", "r\u00e9sum\u00e9 a\\b.pdf"));
+	}
+
+	@Test
+	public void otherSessionsCannotDownload()
+	{
+		tester.getSession().invalidateNow();
+
+		assertEquals(404, download().getStatus());
+	}
+
+	@Test
+	public void tokensOfTheUploadAllowDownloads()
+	{
+		tester.getSession().invalidateNow();
+		WicketApplication application = (WicketApplication)tester.getApplication();
+
+		tester.getRequest().setHeader(StatelessUploadResource.TOKEN_HEADER,
+			application.getUploadTokens().issue("other"));
+		assertEquals(404, download().getStatus());
+
+		tester.getRequest().setHeader(StatelessUploadResource.TOKEN_HEADER,
+			application.getUploadTokens().issue("field"));
+		MockHttpServletResponse response = download();
+		assertEquals(200, response.getStatus());
+		assertEquals("0123456789", response.getDocument());
+	}
+
+	@Test
+	public void singleRange()
+	{
+		tester.getRequest().setHeader("Range", "bytes=2-5");
+		MockHttpServletResponse response = download();
+
+		assertEquals(206, response.getStatus());
+		assertEquals("bytes 2-5/10", response.getHeader("Content-Range"));
+		assertEquals("2345", response.getDocument());
+	}
+
+	@Test
+	public void multipleRanges()
+	{
+		tester.getRequest().setHeader("Range", "bytes=0-1,-2");
+		MockHttpServletResponse response = download();
+
+		assertEquals(206, response.getStatus());
+		assertTrue(response.getContentType().startsWith("multipart/byteranges"));
+		String body = response.getDocument();
+		assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+		assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+		assertEquals(body.getBytes(StandardCharsets.ISO_8859_1).length,
+			Long.parseLong(response.getHeader("Content-Length")));
+	}
+
+	@Test
+	public void unsatisfiableRange()
+	{
+		tester.getRequest().setHeader("Range", "bytes=10-");
+		MockHttpServletResponse response = download();
+
+		assertEquals(416, response.getStatus());
+		assertEquals("bytes */10", response.getHeader("Content-Range"));
+	}
+
+	@Test
+	public void conditionalRequests()
+	{
+		String etag = download().getHeader("ETag");
+
+		tester.getRequest().setHeader("If-None-Match", etag);
+		assertEquals(304, download().getStatus());
+
+		tester.getRequest().setHeader("Range", "bytes=0-0");
+		tester.getRequest().setHeader("If-Range", "\"stale\"");
+		MockHttpServletResponse response = download();
+		assertEquals(200, response.getStatus());
+		assertEquals("0123456789", response.getDocument());
+	}
+
+	@Test
+	public void missingUpload()
+	{
+		tester.executeUrl("file-download/field/missing.txt");
+
+		assertEquals(404, tester.getLastResponse().getStatus());
+	}
+
+	@Test
+	public void parseRanges()
+	{
+		assertNull(UploadDownloadResource.parseRanges(null, 10));
+		assertNull(UploadDownloadResource.parseRanges("bytes=5-2", 10));
+		assertNull(UploadDownloadResource.parseRanges("bytes=x-", 10));
+		assertTrue(UploadDownloadResource.parseRanges("bytes=20-30", 10).isEmpty());
+
+		List<long[]> ranges = UploadDownloadResource.parseRanges("bytes=-20, 3-, 4-100", 10);
+		assertArrayEquals(new long[] { 0, 9 }, ranges.get(0));
+		assertArrayEquals(new long[] { 3, 9 }, ranges.get(1));
+		assertArrayEquals(new long[] { 4, 9 }, ranges.get(2));
+
+		StringBuilder many = new StringBuilder("bytes=0-0");
+		for (int i = 1; i <= 16; i++)
+		{
+			many.append(',').append(i).append('-').append(i);
+		}
+		assertNull(UploadDownloadResource.parseRanges(many.toString(), 100));
+	}
+
+	private MockHttpServletResponse download()
+	{
+		tester.executeUrl("file-download/field/digits.txt");
+		return tester.getLastResponse();
+	}
+
+	private static FileUpload upload(String name, String content) throws Exception
+	{
+		DiskFileItem item = DiskFileItem.builder()
+			.setFieldName("file")
+			.setFileName(name)
+			.setContentType("text/plain")
+			.get();
+		try (OutputStream out = item.getOutputStream())
+		{
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return new FileUpload(item);
+	}
+}
@@ -0,0 +1,166 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItemFactory;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link UploadMemoryBudget}
+ */
+public class TestUploadMemoryBudget
+{
+	@TempDir
+	Path folder;
+
+	@Test
+	public void reservationsStayWithinTheLimit()
+	{
+		UploadMemoryBudget budget = new UploadMemoryBudget(100, new UploadMetrics());
+
+		UploadMemoryBudget.Reservation first = budget.tryReserve(60);
+		assertNotNull(first);
+		assertNull(budget.tryReserve(60));
+
+		first.shrink(20);
+		first.shrink(50);
+		assertEquals(20, first.getBytes());
+		UploadMemoryBudget.Reservation second = budget.tryReserve(60);
+		assertNotNull(second);
+		assertEquals(80, budget.getUsed());
+
+		first.release();
+		first.release();
+		second.release();
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void concurrentReservationsNeverExceedTheLimit() throws Exception
+	{
+		UploadMemoryBudget budget = new UploadMemoryBudget(10_000, new UploadMetrics());
+		AtomicLong peak = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+		{
+			Thread thread = new Thread(() -> {
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				for (int j = 0; j < 20_000; j++)
+				{
+					UploadMemoryBudget.Reservation reservation = budget.tryReserve(1_000);
+					if (reservation != null)
+					{
+						peak.accumulateAndGet(budget.getUsed(), Math::max);
+						reservation.release();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertTrue(peak.get() <= 10_000);
+		assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void partsSpillToDiskWhenTheBudgetIsUsedUp() throws Exception
+	{
+		UploadMetrics metrics = new UploadMetrics();
+		// room for one threshold and a bit
+		UploadMemoryBudget budget = new UploadMemoryBudget(DiskFileItemFactory.DEFAULT_SIZE_THRESHOLD + 150,
+			metrics);
+		UploadFileItemFactory factory = new UploadFileItemFactory(folder.toFile(), "upload",
+			new UploadTracer("upload"), new UploadPipeline(1024, 2), budget);
+
+		FileItem first = write(factory.createItem("a", "text/plain", false, "a.txt"), 100);
+		FileItem second = write(factory.createItem("b", "text/plain", false, "b.txt"), 100);
+
+		assertTrue(first.isInMemory());
+		// the first item settled to its size, which left room for the second
+		assertTrue(second.isInMemory());
+		assertEquals(100 + factory.getSizeThreshold(), budget.getUsed());
+
+		FileItem third = write(factory.createItem("c", "text/plain", false, "c.txt"), 100);
+		assertFalse(third.isInMemory());
+		assertEquals(200, budget.getUsed());
+		assertEquals(1, metrics.getEarlySpills());
+
+		UploadMemoryBudget.Reservation reservation = factory.claimReservation(second);
+		assertEquals(100, reservation.getBytes());
+		factory.abort();
+		assertEquals(100, budget.getUsed());
+		reservation.release();
+		assertEquals(0, budget.getUsed());
+		third.delete();
+	}
+
+	@Test
+	public void partsGiveBackTheirMemoryWhenTheRequestCycleIsDetached() throws Exception
+	{
+		WicketTester tester = new WicketTester(new WicketApplication());
+		try
+		{
+			Path file = Files.writeString(folder.resolve("small.txt"), "small");
+			MockHttpServletRequest request = tester.getRequest();
+			request.setMethod("POST");
+			request.setUseMultiPartContentType(true);
+			request.addFile("file", new org.apache.wicket.util.file.File(file.toFile()), "text/plain");
+			request.setParameter("field", "value");
+
+			TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+				request, "", Bytes.megabytes(1), "up1");
+			multipartRequest.parseFileParts();
+
+			UploadMemoryBudget budget = UploadMemoryBudget.get();
+			assertEquals("small", multipartRequest.getFile("file").get(0).getString());
+			assertTrue(budget.getUsed() > 0);
+			assertTrue(budget.getUsed() < 100);
+
+			tester.getRequestCycle().detach();
+			assertEquals(0, budget.getUsed());
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	private static FileItem write(FileItem item, int size) throws Exception
+	{
+		try (OutputStream out = item.getOutputStream())
+		{
+			out.write(new byte[size]);
+		}
+		return item;
+	}
+}
@@ -0,0 +1,341 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link UploadPipeline} and {@link PartTee}
+ */
+public class TestUploadPipeline
+{
+	@TempDir
+	Path folder;
+
+	private UploadPipeline pipeline;
+
+	private UploadFileItemFactory factory;
+
+	@BeforeEach
+	public void setUp()
+	{
+		pipeline = new UploadPipeline(7, 2);
+		factory = new UploadFileItemFactory(folder.toFile(), "test", new UploadTracer("test"), pipeline);
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		pipeline.close();
+	}
+
+	@Test
+	public void stagesSeeEveryByteWhileTheItemIsSpooled() throws Exception
+	{
+		pipeline.add(stage("digest", () -> new UploadStage.Sink()
+		{
+			private final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+			@Override
+			public void accept(ByteBuffer bytes)
+			{
+				digest.update(bytes);
+			}
+
+			@Override
+			public Object finish()
+			{
+				return digest.digest();
+			}
+		}));
+		pipeline.add(stage("slow", () -> new UploadStage.Sink()
+		{
+			private long count;
+
+			@Override
+			public void accept(ByteBuffer bytes) throws Exception
+			{
+				Thread.sleep(1);
+				count += bytes.remaining();
+			}
+
+			@Override
+			public Object finish()
+			{
+				return count;
+			}
+		}));
+		byte[] content = new byte[1000];
+		for (int i = 0; i < content.length; i++)
+		{
+			content[i] = (byte)i;
+		}
+
+		FileItem item = spool("file.bin", content);
+		PartTee tee = factory.getTee(item);
+		Map<String, Object> results = tee.await();
+
+		assertNull(tee.getVeto());
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), (byte[])results.get("digest"));
+		assertEquals(1000L, results.get("slow"));
+		assertArrayEquals(content, item.get());
+	}
+
+	@Test
+	public void aStageCanVetoThePart() throws Exception
+	{
+		AtomicBoolean aborted = new AtomicBoolean();
+		pipeline.add(stage("scanner", () -> new UploadStage.Sink()
+		{
+			@Override
+			public void accept(ByteBuffer bytes)
+			{
+				throw new UploadVetoException("infected");
+			}
+
+			@Override
+			public Object finish()
+			{
+				return "clean";
+			}
+		}));
+		pipeline.add(stage("other", () -> new UploadStage.Sink()
+		{
+			@Override
+			public void accept(ByteBuffer bytes)
+			{
+			}
+
+			@Override
+			public Object finish()
+			{
+				return "done";
+			}
+
+			@Override
+			public void abort()
+			{
+				aborted.set(true);
+			}
+		}));
+
+		PartTee tee = factory.getTee(spool("virus.exe", new byte[100]));
+		Map<String, Object> results = tee.await();
+
+		assertEquals("infected", tee.getVeto().getMessage());
+		assertInstanceOf(UploadVetoException.class, results.get("scanner"));
+		// the other stage may have finished before the veto, if not it was aborted
+		assertTrue(aborted.get() || "done".equals(results.get("other")));
+	}
+
+	@Test
+	public void failedStagesDoNotStallTheParser() throws Exception
+	{
+		pipeline.add(stage("broken", () -> new UploadStage.Sink()
+		{
+			@Override
+			public void accept(ByteBuffer bytes)
+			{
+				throw new IllegalStateException("broken");
+			}
+
+			@Override
+			public Object finish()
+			{
+				return null;
+			}
+		}));
+
+		PartTee tee = factory.getTee(spool("file.txt", new byte[500]));
+		Map<String, Object> results = tee.await();
+
+		assertNull(tee.getVeto());
+		assertInstanceOf(IllegalStateException.class, results.get("broken"));
+	}
+
+	@Test
+	public void singleBytesAreTeed() throws Exception
+	{
+		pipeline.add(stage("count", () -> new UploadStage.Sink()
+		{
+			private long count;
+
+			@Override
+			public void accept(ByteBuffer bytes)
+			{
+				count += bytes.remaining();
+			}
+
+			@Override
+			public Object finish()
+			{
+				return count;
+			}
+		}));
+
+		FileItem item = factory.createItem("file", "application/octet-stream", false, "bytes.bin");
+		try (OutputStream out = item.getOutputStream())
+		{
+			for (int i = 0; i < 100; i++)
+			{
+				out.write(i);
+			}
+		}
+
+		assertEquals(100L, factory.getTee(item).await().get("count"));
+		assertEquals(100, item.get().length);
+	}
+
+	@Test
+	public void hungStagesTimeOut() throws Exception
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicBoolean aborted = new AtomicBoolean();
+		pipeline.setStageTimeout(Duration.ofMillis(100));
+		pipeline.add(stage("hung", () -> new UploadStage.Sink()
+		{
+			@Override
+			public void accept(ByteBuffer bytes) throws Exception
+			{
+				release.await();
+			}
+
+			@Override
+			public Object finish()
+			{
+				return "done";
+			}
+
+			@Override
+			public void abort()
+			{
+				aborted.set(true);
+				release.countDown();
+			}
+		}));
+
+		// far more chunks than the stage may lag behind
+		FileItem item = spool("file.bin", new byte[1000]);
+		Map<String, Object> results = factory.getTee(item).await();
+
+		assertInstanceOf(TimeoutException.class, results.get("hung"));
+		assertTrue(aborted.get());
+		assertEquals(1000, item.get().length);
+	}
+
+	@Test
+	public void timeoutsCanVetoThePart() throws Exception
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		pipeline.setVetoOnTimeout(true);
+		pipeline.add(stage("slow", Duration.ofMillis(100), () -> new UploadStage.Sink()
+		{
+			@Override
+			public void accept(ByteBuffer bytes)
+			{
+			}
+
+			@Override
+			public Object finish() throws Exception
+			{
+				release.await();
+				return "clean";
+			}
+		}));
+
+		try
+		{
+			PartTee tee = factory.getTee(spool("file.bin", new byte[10]));
+			Map<String, Object> results = tee.await();
+
+			assertInstanceOf(UploadVetoException.class, results.get("slow"));
+			assertEquals(results.get("slow"), tee.getVeto());
+		}
+		finally
+		{
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void formFieldsAreNotTeed()
+	{
+		pipeline.add(stage("any", () -> null));
+
+		FileItem field = factory.createItem("field", null, true, null);
+
+		assertNull(factory.getTee(field));
+	}
+
+	private FileItem spool(String fileName, byte[] content) throws Exception
+	{
+		FileItem item = factory.createItem("file", "application/octet-stream", false, fileName);
+		try (OutputStream out = item.getOutputStream())
+		{
+			// odd sized writes so that they straddle the chunks
+			for (int off = 0; off < content.length; off += 13)
+			{
+				out.write(content, off, Math.min(13, content.length - off));
+			}
+		}
+		return item;
+	}
+
+	private static UploadStage stage(String name, SinkFactory sinks)
+	{
+		return stage(name, null, sinks);
+	}
+
+	private static UploadStage stage(String name, Duration timeout, SinkFactory sinks)
+	{
+		return new UploadStage()
+		{
+			@Override
+			public String getName()
+			{
+				return name;
+			}
+
+			@Override
+			public Duration getTimeout()
+			{
+				return timeout;
+			}
+
+			@Override
+			public Sink open(String uploadId, String fieldName, String fileName, String contentType)
+			{
+				try
+				{
+					return sinks.create();
+				}
+				catch (Exception e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	private interface SinkFactory
+	{
+		UploadStage.Sink create() throws Exception;
+	}
+}
@@ -0,0 +1,286 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.catalina.core.ApplicationPart;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItem;
+import org.apache.tomcat.util.http.fileupload.util.FileItemHeadersImpl;
+import org.apache.wicket.core.util.lang.WicketObjects;
+import org.apache.wicket.extensions.ajax.markup.html.form.upload.UploadProgressBar;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.servlet.MultipartServletWebRequestImpl;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.protocol.http.servlet.UploadInfo;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.SharedResourceReference;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link UploadProgress}
+ */
+public class TestUploadProgress
+{
+	private static final long MS = 1_000_000L;
+
+	@TempDir
+	Path folder;
+
+	@Test
+	public void partsAreFollowedAndReported()
+	{
+		UploadMetrics metrics = new UploadMetrics();
+		UploadProgress progress = new UploadProgress(1000, metrics, 0);
+
+		progress.update(50, 0, null, 10 * MS);
+		assertEquals(0, progress.getCurrentItem());
+		progress.update(100, 1, null, 20 * MS);
+		progress.update(300, 1, "a.txt", 30 * MS);
+		assertEquals(1, progress.getCurrentItem());
+		assertEquals("a.txt", progress.getCurrentName());
+		assertEquals(200, progress.getCurrentItemBytes());
+
+		progress.update(600, 2, "b.txt", 40 * MS);
+		assertEquals(2, progress.getCurrentItem());
+		assertEquals("b.txt", progress.getCurrentName());
+		assertEquals(0, progress.getCurrentItemBytes());
+		assertEquals(1, metrics.getHistograms().get("partBytesPerSecond").getCount());
+
+		progress.update(1000, 2, "b.txt", 50 * MS);
+		progress.completed();
+		assertEquals(0, progress.getCurrentItem());
+		assertEquals(100, progress.getPercentageComplete());
+		assertEquals(2, metrics.getHistograms().get("partBytesPerSecond").getCount());
+	}
+
+	@Test
+	public void totalsAreNotLimitedTo2GiB()
+	{
+		long total = 5L * 1024 * 1024 * 1024;
+		UploadProgress progress = new UploadProgress(total, null, 0);
+
+		progress.update(total / 2, 1, "big.iso", MS);
+
+		assertEquals(total, progress.getTotalBytes());
+		assertEquals(50, progress.getPercentageComplete());
+	}
+
+	@Test
+	public void rateAndRemainingTimeFollowTheRecentRate()
+	{
+		UploadProgress progress = new UploadProgress(100_000_000, null, 0);
+		long bytes = 0;
+		long now = 0;
+		// 10 seconds at 1MB/s
+		for (int i = 0; i < 40; i++)
+		{
+			now += 250 * MS;
+			bytes += 250_000;
+			progress.update(bytes, 1, "a", now);
+		}
+		assertEquals(1_000_000, progress.getTransferRateBPS(), 1);
+		assertEquals(90_000, progress.getRemainingMilliseconds(), 10);
+
+		// then 2 seconds at 500KB/s, the average since the start would still be 0.92MB/s
+		for (int i = 0; i < 8; i++)
+		{
+			now += 250 * MS;
+			bytes += 125_000;
+			progress.update(bytes, 1, "a", now);
+		}
+		long rate = progress.getTransferRateBPS();
+		assertTrue(rate > 600_000 && rate < 750_000, "rate " + rate);
+		assertEquals((100_000_000 - bytes) * 1000 / rate, progress.getRemainingMilliseconds());
+	}
+
+	@Test
+	public void progressSurvivesSerialization()
+	{
+		long total = 5L * 1024 * 1024 * 1024;
+		UploadProgress progress = new UploadProgress(total, new UploadMetrics(), 0);
+		progress.update(total / 4, 2, "big.iso", 500 * MS);
+
+		UploadProgress copy = WicketObjects.cloneObject(progress);
+
+		assertEquals(total, copy.getTotalBytes());
+		assertEquals(25, copy.getPercentageComplete());
+		assertEquals(2, copy.getCurrentItem());
+		assertEquals("big.iso", copy.getCurrentName());
+		assertEquals(progress.getTransferRateBPS(), copy.getTransferRateBPS());
+		copy.completed();
+	}
+
+	@Test
+	public void progressIsReadByTheUploadStatusResource() throws Exception
+	{
+		WicketTester tester = new WicketTester(new WicketApplication());
+		try
+		{
+			MockHttpServletRequest request = tester.getRequest();
+			request.setMethod("POST");
+			request.setUseMultiPartContentType(true);
+			request.addFile("first", new org.apache.wicket.util.file.File(
+				Files.write(folder.resolve("a.txt"), new byte[100]).toFile()), "text/plain");
+			ServletWebRequest webRequest = (ServletWebRequest)tester.getApplication().newWebRequest(request, "");
+			TomcatMultipartServletWebRequestImpl multipartRequest =
+				(TomcatMultipartServletWebRequestImpl)webRequest.newMultipartWebRequest(Bytes.megabytes(1), "up1");
+
+			multipartRequest.onUploadStarted(1000);
+			multipartRequest.onUploadUpdate(400, 1000, 1, "a.txt");
+			tester.startResourceReference(new SharedResourceReference(UploadProgressBar.class.getName()),
+				new PageParameters().add("upload", "up1"));
+
+			assertTrue(tester.getLastResponseAsString().contains("|40|"), tester.getLastResponseAsString());
+			multipartRequest.onUploadCompleted();
+			assertNull(MultipartServletWebRequestImpl.getUploadInfo(request, "up1"));
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	@Test
+	public void parserReportsTheParts() throws Exception
+	{
+		WicketTester tester = new WicketTester(new WicketApplication());
+		try
+		{
+			MockHttpServletRequest request = tester.getRequest();
+			request.setMethod("POST");
+			request.setUseMultiPartContentType(true);
+			request.addFile("first", new org.apache.wicket.util.file.File(
+				Files.write(folder.resolve("a.txt"), new byte[10_000]).toFile()), "text/plain");
+			request.addFile("second", new org.apache.wicket.util.file.File(
+				Files.write(folder.resolve("b.txt"), new byte[10_000]).toFile()), "text/plain");
+
+			List<String> seen = new ArrayList<>();
+			UploadProgress[] stored = new UploadProgress[1];
+			TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+				request, "", Bytes.megabytes(1), "up1")
+			{
+				@Override
+				protected void storeUploadInfo(UploadInfo info)
+				{
+					stored[0] = (UploadProgress)info;
+					String part = stored[0].getCurrentItem() + ":" + stored[0].getCurrentName();
+					if (seen.isEmpty() || !seen.get(seen.size() - 1).equals(part))
+					{
+						seen.add(part);
+					}
+				}
+
+				@Override
+				protected UploadInfo loadUploadInfo()
+				{
+					return stored[0];
+				}
+
+				@Override
+				protected void removeUploadInfo()
+				{
+				}
+			};
+			multipartRequest.parseFileParts();
+
+			assertTrue(seen.contains("1:a.txt"), seen.toString());
+			assertTrue(seen.indexOf("1:a.txt") < seen.indexOf("2:b.txt"), seen.toString());
+			assertEquals(0, stored[0].getCurrentItem());
+			assertEquals(request.getContentLengthLong(), stored[0].getBytesUploaded());
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	@Test
+	public void adoptedPartsAreAccountedFor() throws Exception
+	{
+		WicketTester tester = new WicketTester(new WicketApplication());
+		try
+		{
+			MockHttpServletRequest request = tester.getRequest();
+			request.setMethod("POST");
+			request.setUseMultiPartContentType(true);
+			request.addFile("first", new org.apache.wicket.util.file.File(
+				Files.write(folder.resolve("a.txt"), new byte[100]).toFile()), "text/plain");
+			DiskFileItem item = new DiskFileItem("first", "text/plain", false, "a.txt", 1024, folder.toFile());
+			FileItemHeadersImpl headers = new FileItemHeadersImpl();
+			headers.addHeader("content-disposition", "form-data; name=\"first\"; filename=\"a.txt\"");
+			item.setHeaders(headers);
+			try (OutputStream out = item.getOutputStream())
+			{
+				out.write(new byte[100]);
+			}
+			request.setPart("first", new ApplicationPart(item, folder.toFile()));
+
+			UploadMetrics metrics = UploadMetrics.get();
+			long uploads = metrics.getUploads();
+			long[] activeWhileStarted = new long[1];
+			UploadProgress[] stored = new UploadProgress[1];
+			List<String> calls = new ArrayList<>();
+			TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+				request, "", Bytes.megabytes(1), "up1")
+			{
+				@Override
+				protected boolean isParsedByContainer(jakarta.servlet.http.HttpServletRequest request)
+				{
+					return true;
+				}
+
+				@Override
+				protected void onUploadStarted(long totalBytes)
+				{
+					calls.add("started");
+					super.onUploadStarted(totalBytes);
+				}
+
+				@Override
+				protected void onUploadCompleted()
+				{
+					activeWhileStarted[0] = metrics.getActiveUploads();
+					calls.add("completed");
+					super.onUploadCompleted();
+				}
+
+				@Override
+				protected void storeUploadInfo(UploadInfo info)
+				{
+					stored[0] = (UploadProgress)info;
+				}
+
+				@Override
+				protected UploadInfo loadUploadInfo()
+				{
+					return stored[0];
+				}
+
+				@Override
+				protected void removeUploadInfo()
+				{
+				}
+			};
+			multipartRequest.parseFileParts();
+
+			assertEquals(1, multipartRequest.getFiles().size());
+			assertEquals(List.of("started", "completed"), calls);
+			assertEquals(uploads + 1, metrics.getUploads());
+			assertEquals(0, activeWhileStarted[0]);
+			assertEquals(request.getContentLengthLong(), stored[0].getBytesUploaded());
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import org.apache.commons.fileupload2.core.FileItem;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link UploadSpool}
+ */
+public class TestUploadSpool
+{
+	@TempDir
+	Path folder;
+
+	private WicketTester tester;
+
+	@AfterEach
+	public void tearDown()
+	{
+		if (tester != null)
+		{
+			tester.destroy();
+		}
+	}
+
+	@Test
+	public void fileIsDeletedWhenTheLastReferenceIsReleased() throws Exception
+	{
+		UploadSpool spool = new UploadSpool(folder.toFile(), null, UploadMetrics.get());
+		java.io.File file = Files.writeString(folder.resolve("upload_a_1.tmp"), "a").toFile();
+
+		UploadSpool.SpoolFile spoolFile = spool.track(file, 1);
+		spoolFile.retain();
+		spoolFile.release();
+		spool.close();
+		assertTrue(file.exists());
+
+		spoolFile.release();
+		assertFalse(file.exists());
+		assertEquals(0, spool.getTrackedFiles());
+		assertThrows(IllegalStateException.class, spoolFile::retain);
+	}
+
+	@Test
+	public void sweepDeletesUntrackedLeftoversOnly() throws Exception
+	{
+		UploadSpool spool = new UploadSpool(folder.toFile(), Duration.ofHours(1), UploadMetrics.get());
+		java.io.File leftover = Files.writeString(folder.resolve("upload_b_1.tmp"), "b").toFile();
+		java.io.File tracked = Files.writeString(folder.resolve("upload_b_2.tmp"), "b").toFile();
+		java.io.File other = Files.writeString(folder.resolve("notes.txt"), "b").toFile();
+		spool.track(tracked, 1);
+
+		assertEquals(1, spool.sweep(System.currentTimeMillis() + 1000));
+
+		assertFalse(leftover.exists());
+		assertTrue(tracked.exists());
+		assertTrue(other.exists());
+		spool.close();
+	}
+
+	@Test
+	public void spooledPartsAreReleasedWhenTheRequestCycleIsDetached() throws Exception
+	{
+		Path spoolFolder = startApplication();
+		Files.writeString(spoolFolder.resolve("upload_crashed_1.tmp"), "left behind");
+		tester.destroy();
+		startApplication();
+		assertEquals(0, spoolFiles(spoolFolder).size());
+
+		List<FileItem> items = parse("big.bin", 64 * 1024);
+		assertEquals(1, items.size());
+		assertEquals(1, spoolFiles(spoolFolder).size());
+
+		tester.getRequestCycle().detach();
+		UploadSpool.get().close();
+
+		assertEquals(0, spoolFiles(spoolFolder).size());
+		assertEquals(0, UploadSpool.get().getTrackedFiles());
+	}
+
+	@Test
+	public void writingAPartTransfersItsSpoolFile() throws Exception
+	{
+		Path spoolFolder = startApplication();
+		FileItem item = parse("big.bin", 64 * 1024).get(0);
+		Path target = folder.resolve("target.bin");
+
+		item.write(target);
+		item.delete();
+		UploadSpool.get().close();
+
+		assertEquals(64 * 1024, Files.size(target));
+		assertEquals(0, spoolFiles(spoolFolder).size());
+	}
+
+	private Path startApplication()
+	{
+		Path spoolFolder = folder.resolve("spool");
+		tester = new WicketTester(new WicketApplication()
+		{
+			@Override
+			protected File getUploadsFolder()
+			{
+				return new File(folder.resolve("storage").toFile());
+			}
+
+			@Override
+			protected File getSpoolFolder()
+			{
+				return new File(spoolFolder.toFile());
+			}
+		});
+		return spoolFolder;
+	}
+
+	private List<FileItem> parse(String name, int size) throws Exception
+	{
+		Path file = folder.resolve(name);
+		Files.write(file, new byte[size]);
+		MockHttpServletRequest request = tester.getRequest();
+		request.setMethod("POST");
+		request.setUseMultiPartContentType(true);
+		request.addFile("file", new File(file.toFile()), "application/octet-stream");
+
+		TomcatMultipartServletWebRequestImpl multipartRequest = new TomcatMultipartServletWebRequestImpl(
+			request, "", Bytes.megabytes(1), "up1");
+		multipartRequest.parseFileParts();
+		return multipartRequest.getFile("file");
+	}
+
+	private static List<Path> spoolFiles(Path spoolFolder) throws Exception
+	{
+		try (var files = Files.list(spoolFolder))
+		{
+			return files.toList();
+		}
+	}
+}
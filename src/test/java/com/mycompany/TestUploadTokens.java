@@ -0,0 +1,53 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link UploadTokens}
+ */
+public class TestUploadTokens
+{
+	private final UploadTokens tokens = new UploadTokens(UploadTokens.randomKey(), Duration.ofMinutes(1));
+
+	@Test
+	public void issuedTokensAreVerified()
+	{
+		assertEquals("upload.id", tokens.verify(tokens.issue("upload.id")));
+	}
+
+	@Test
+	public void forgedTokensAreRejected()
+	{
+		String token = tokens.issue("mine");
+		String otherId = token.replaceFirst("^[^.]+", "dGhlaXJz");
+
+		assertNull(tokens.verify(otherId));
+		assertNull(tokens.verify(token.substring(0, token.length() - 2)));
+		assertNull(new UploadTokens(UploadTokens.randomKey(), Duration.ofMinutes(1)).verify(token));
+		assertNull(tokens.verify("no dots"));
+		assertNull(tokens.verify("a.b.c"));
+		assertNull(tokens.verify(null));
+	}
+
+	@Test
+	public void expiredTokensAreRejected()
+	{
+		UploadTokens expired = new UploadTokens(UploadTokens.randomKey(), Duration.ofMillis(-1));
+
+		assertNull(expired.verify(expired.issue("late")));
+	}
+
+	@Test
+	public void tokensCanBeLimitedToAShortTimeToLive()
+	{
+		String shortLived = tokens.issue("short", Duration.ofSeconds(10));
+
+		assertEquals("short", tokens.verify(shortLived, Duration.ofSeconds(10)));
+		assertNull(tokens.verify(tokens.issue("long"), Duration.ofSeconds(10)));
+		assertEquals("long", tokens.verify(tokens.issue("long"), null));
+	}
+}
@@ -0,0 +1,179 @@
+package com.mycompany;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.commons.fileupload2.core.DiskFileItem;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.markup.html.form.upload.FileUpload;
+import org.apache.wicket.util.file.File;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link WriteBehindUploadsFileManager}
+ */
+public class TestWriteBehindUploadsFileManager
+{
+	@TempDir
+	Path folder;
+
+	private WriteBehindUploadsFileManager fileManager;
+
+	@BeforeEach
+	public void setUp()
+	{
+		fileManager = new WriteBehindUploadsFileManager(new File(folder.toFile()), UploadMetrics.get(), 4, 2, 3, 64);
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		fileManager.close();
+	}
+
+	@Test
+	public void savedFilesBecomeDurableAtTheirTarget() throws Exception
+	{
+		List<CompletableFuture<Path>> futures = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+		{
+			futures.add(fileManager.saveAsync(upload("file" + i + ".txt", "content " + i), "field"));
+		}
+
+		for (int i = 0; i < 10; i++)
+		{
+			Path stored = futures.get(i).join();
+			assertEquals(folder.resolve("field").resolve("file" + i + ".txt"), stored);
+			assertArrayEquals(("content " + i).getBytes(StandardCharsets.UTF_8), Files.readAllBytes(stored));
+		}
+		try (var staged = Files.list(folder.resolve(".staging")))
+		{
+			assertEquals(0, staged.count());
+		}
+	}
+
+	@Test
+	public void getFileWaitsForThePendingWrite() throws Exception
+	{
+		fileManager.save(upload("report.pdf", "pdf"), "field");
+
+		File file = fileManager.getFile("field", "report.pdf");
+
+		assertEquals("pdf", Files.readString(file.toPath()));
+		assertNull(fileManager.getFile("field", "missing.pdf"));
+	}
+
+	@Test
+	public void storedFilesAreFoundAfterARestart() throws Exception
+	{
+		fileManager.saveAsync(upload("notes.txt", "notes"), "field").join();
+		fileManager.close();
+
+		fileManager = new WriteBehindUploadsFileManager(new File(folder.toFile()), UploadMetrics.get(), 4, 2, 3, 64);
+		File file = fileManager.getFile("field", "notes.txt");
+
+		assertEquals("notes", Files.readString(file.toPath()));
+	}
+
+	@Test
+	public void largeFilesAreStoredInTheirOwnLane() throws Exception
+	{
+		fileManager.close();
+		fileManager = new WriteBehindUploadsFileManager(new File(folder.toFile()), UploadMetrics.get(), 4, 1, 1,
+			10, 3, 64);
+
+		CompletableFuture<Path> large = fileManager.saveAsync(upload("large.bin", "large content"), "field");
+		CompletableFuture<Path> small = fileManager.saveAsync(upload("small.txt", "small"), "field");
+
+		assertEquals("small", Files.readString(small.join()));
+		assertEquals("large content", Files.readString(large.join()));
+	}
+
+	@Test
+	public void namesCannotEscapeTheFolder() throws Exception
+	{
+		FileUpload upload = upload("..", "evil");
+
+		assertThrows(WicketRuntimeException.class, () -> fileManager.save(upload, "field"));
+		assertThrows(IllegalArgumentException.class, () -> fileManager.getFile("..", "x"));
+	}
+
+	@Test
+	public void dotfilesAreStoredButNotInTheFoldersOfTheStorage() throws Exception
+	{
+		Path stored = fileManager.saveAsync(upload(".env", "KEY=value"), "field").join();
+
+		assertEquals(folder.resolve("field").resolve(".env"), stored);
+		assertEquals("KEY=value", Files.readString(fileManager.getFile("field", ".env").toPath()));
+		assertThrows(IllegalArgumentException.class, () -> fileManager.getFile(".staging", "x"));
+		assertThrows(IllegalArgumentException.class, () -> fileManager.getFile("field", "a/../b"));
+	}
+
+	@Test
+	public void uploadIdsWithSeparatorsAreRejected() throws Exception
+	{
+		FileUpload upload = upload("a.txt", "a");
+
+		assertThrows(WicketRuntimeException.class, () -> fileManager.save(upload, "a/b"));
+		assertThrows(IllegalArgumentException.class, () -> fileManager.getFile("a\\b", "a.txt"));
+		assertThrows(IllegalArgumentException.class, () -> fileManager.getFile("field", "a\\b.txt"));
+	}
+
+	@Test
+	public void spoolFoldersMustShareTheFileSystem() throws Exception
+	{
+		fileManager.checkSameFileSystem(new File(folder.resolve("spool").toFile()));
+
+		Path shm = Path.of("/dev/shm");
+		assumeTrue(Files.isWritable(shm) && !Files.getFileStore(shm).equals(Files.getFileStore(folder)));
+		Path other = Files.createTempDirectory(shm, "spool");
+		try
+		{
+			File spool = new File(other.toFile());
+			assertThrows(WicketRuntimeException.class, () -> fileManager.checkSameFileSystem(spool));
+		}
+		finally
+		{
+			Files.delete(other);
+		}
+	}
+
+	@Test
+	public void savesAfterCloseAreRefused() throws Exception
+	{
+		CompletableFuture<Path> queued = fileManager.saveAsync(upload("a.txt", "a"), "field");
+		fileManager.close();
+
+		assertEquals("a", Files.readString(queued.join()));
+		WicketRuntimeException e = assertThrows(WicketRuntimeException.class,
+			() -> fileManager.save(upload("b.txt", "b"), "field"));
+		assertEquals(IllegalStateException.class, e.getCause().getClass());
+	}
+
+	private static FileUpload upload(String name, String content) throws Exception
+	{
+		DiskFileItem item = DiskFileItem.builder()
+			.setFieldName("file")
+			.setFileName(name)
+			.setContentType("text/plain")
+			.get();
+		try (OutputStream out = item.getOutputStream())
+		{
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return new FileUpload(item);
+	}
+}
@@ -0,0 +1,200 @@
+package com.mycompany;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Compares HTTP/1.1 with HTTP/2 on the same mix of uploads to {@code /api/upload} of a server
+ * started with {@link Start}. Both must use the same token key, so this class can issue the
+ * upload tokens itself:
+ *
+ * <pre>
+ * KEY=$(head -c 32 /dev/urandom | base64)
+ * java -Duploads.tokenKey=$KEY ... com.mycompany.Start
+ * java -Duploads.tokenKey=$KEY -Djdk.internal.httpclient.disableHostnameVerification ... com.mycompany.UploadBenchmark https://localhost:8443 8 3
+ * </pre>
+ *
+ * The arguments are the base URL, the number of concurrent uploads and the number of rounds. Each
+ * round uploads the mix with HTTP/1.1 first and then with HTTP/2, on a fresh client each, so both
+ * pay for their TLS handshakes. Over TLS the protocol is negotiated with ALPN; over cleartext the
+ * JDK client upgrades to h2c. The first round warms up the server and is not reported.
+ */
+public class UploadBenchmark
+{
+	/** the sizes of the files in one upload mix: many small ones, some medium, a few large */
+	private static final int[] MIX = { 16 * 1024, 16 * 1024, 16 * 1024, 16 * 1024, 16 * 1024,
+			16 * 1024, 16 * 1024, 16 * 1024, 256 * 1024, 256 * 1024, 256 * 1024, 256 * 1024,
+			4 * 1024 * 1024, 4 * 1024 * 1024, 32 * 1024 * 1024 };
+
+	/**
+	 * Main function, runs the benchmark.
+	 *
+	 * @param args
+	 *            base URL, concurrency and rounds
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String baseUrl = args.length > 0 ? args[0] : "https://localhost:8443";
+		int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		String key = System.getProperty("uploads.tokenKey");
+		if (key == null)
+		{
+			System.err.println("Set -Duploads.tokenKey to the key the server was started with");
+			System.exit(1);
+		}
+		UploadTokens tokens = new UploadTokens(Base64.getDecoder().decode(key), Duration.ofHours(1));
+
+		List<byte[]> mix = new ArrayList<>();
+		Random random = new Random(42);
+		for (int size : MIX)
+		{
+			byte[] content = new byte[size];
+			random.nextBytes(content);
+			mix.add(content);
+		}
+		long mixBytes = Arrays.stream(MIX).asLongStream().sum();
+
+		System.out.printf("%d files, %d MiB per round, %d concurrent uploads against %s%n", MIX.length,
+			mixBytes >> 20, concurrency, baseUrl);
+		System.out.printf("%-9s %5s %10s %10s %10s %10s%n", "protocol", "round", "wall ms", "MiB/s",
+			"p50 ms", "p99 ms");
+		for (int round = 0; round <= rounds; round++)
+		{
+			for (HttpClient.Version version : HttpClient.Version.values())
+			{
+				Result result = run(version, baseUrl, tokens, mix, concurrency);
+				if (round > 0)
+				{
+					System.out.printf("%-9s %5d %10d %10.1f %10d %10d%n", version, round,
+						result.wallMillis, mixBytes / 1048576.0 / (result.wallMillis / 1000.0),
+						result.percentile(50), result.percentile(99));
+				}
+			}
+		}
+	}
+
+	private static Result run(HttpClient.Version version, String baseUrl, UploadTokens tokens,
+		List<byte[]> mix, int concurrency) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		HttpClient client = HttpClient.newBuilder()
+			.version(version)
+			.sslContext(trustAll())
+			.executor(executor)
+			.build();
+		Semaphore permits = new Semaphore(concurrency);
+		long[] latencies = new long[mix.size()];
+		AtomicInteger failures = new AtomicInteger();
+		List<CompletableFuture<?>> uploads = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < mix.size(); i++)
+		{
+			int index = i;
+			String boundary = UUID.randomUUID().toString();
+			HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/upload"))
+				.header(StatelessUploadResource.TOKEN_HEADER, tokens.issue(UUID.randomUUID().toString()))
+				.header("Content-Type", "multipart/form-data; boundary=" + boundary)
+				.POST(HttpRequest.BodyPublishers.ofByteArray(multipart(boundary, "file-" + i, mix.get(i))))
+				.build();
+			permits.acquire();
+			long sent = System.nanoTime();
+			uploads.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+				.whenComplete((response, failure) -> {
+					latencies[index] = (System.nanoTime() - sent) / 1_000_000;
+					if (failure != null || response.statusCode() != 200)
+					{
+						failures.incrementAndGet();
+					}
+					permits.release();
+				}));
+		}
+		CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+		long wallMillis = (System.nanoTime() - start) / 1_000_000;
+		executor.shutdown();
+		if (failures.get() > 0)
+		{
+			System.err.printf("%s: %d uploads failed%n", version, failures.get());
+		}
+		return new Result(wallMillis, latencies);
+	}
+
+	private static byte[] multipart(String boundary, String fileName, byte[] content)
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream(content.length + 256);
+		body.writeBytes(("--" + boundary + "\r\n" +
+			"Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"\r\n" +
+			"Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		body.writeBytes(content);
+		body.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		return body.toByteArray();
+	}
+
+	/**
+	 * The quickstart certificate is self-signed. Never do this outside a benchmark.
+	 */
+	private static SSLContext trustAll() throws Exception
+	{
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new X509TrustManager()
+		{
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType)
+			{
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType)
+			{
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers()
+			{
+				return new X509Certificate[0];
+			}
+		} }, new SecureRandom());
+		return context;
+	}
+
+	private static final class Result
+	{
+		private final long wallMillis;
+
+		private final long[] latencies;
+
+		private Result(long wallMillis, long[] latencies)
+		{
+			this.wallMillis = wallMillis;
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+		}
+
+		private long percentile(int percentile)
+		{
+			int index = (int)Math.ceil(percentile / 100.0 * latencies.length) - 1;
+			return latencies[Math.max(0, index)];
+		}
+	}
+}